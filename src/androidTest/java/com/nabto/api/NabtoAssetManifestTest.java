@@ -0,0 +1,56 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoAssetManifestTest {
+
+    private static NabtoAssetManifest manifest(String text) throws Exception {
+        return NabtoAssetManifest.read(new ByteArrayInputStream(text.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void writeReadRoundTrip() throws Exception {
+        NabtoAssetManifest manifest = manifest("# comment\naa\t3\tnabto/a.txt\nbroken line\n"
+                + "bb\t5\tnabto/b.txt\n");
+        assertEquals(2, manifest.entries().size());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.write(out);
+        assertEquals("aa\t3\tnabto/a.txt\nbb\t5\tnabto/b.txt\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void onlyChangedAndMissingFilesAreCopied() throws Exception {
+        File dir = File.createTempFile("nabto", "assets");
+        dir.delete();
+        new File(dir, "nabto").mkdirs();
+        for (String name : new String[] {"a.txt", "b.txt"}) {
+            FileOutputStream out = new FileOutputStream(new File(dir, "nabto/" + name));
+            out.write(new byte[3]);
+            out.close();
+        }
+        NabtoAssetManifest installed = manifest("aa\t3\tnabto/a.txt\nbb\t3\tnabto/b.txt\n"
+                + "dd\t3\tnabto/d.txt\n");
+        NabtoAssetManifest bundled = manifest("aa\t3\tnabto/a.txt\nb2\t3\tnabto/b.txt\n"
+                + "cc\t3\tnabto/c.txt\n");
+
+        List<NabtoAssetManifest.Entry> changed = bundled.changedSince(installed, dir);
+        assertEquals(2, changed.size());
+        assertEquals("nabto/b.txt", changed.get(0).path);
+        assertEquals("nabto/c.txt", changed.get(1).path);
+
+        List<NabtoAssetManifest.Entry> removed = bundled.removedSince(installed);
+        assertEquals(1, removed.size());
+        assertEquals("nabto/d.txt", removed.get(0).path);
+    }
+}
@@ -0,0 +1,55 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoDiscoveryServiceTest {
+
+    @Test
+    public void snapshotOnlyChangesWithDevices() {
+        NabtoDiscoveryService discovery = new NabtoDiscoveryService();
+        String a = "a.demo.nabto.net";
+        discovery.update(new String[] {a, "b.demo.nabto.net"}, 1);
+        NabtoDeviceSnapshot snapshot = discovery.getSnapshot();
+        assertEquals(1, snapshot.getVersion());
+
+        discovery.update(new String[] {new String(a), "b.demo.nabto.net"}, 2);
+        assertSame(snapshot, discovery.getSnapshot());
+        assertTrue(discovery.deltaSince(1).isEmpty());
+        // the known instance is kept
+        assertSame(a, discovery.getDevices().keySet().iterator().next());
+    }
+
+    @Test
+    public void deltaCombinesChanges() {
+        NabtoDiscoveryService discovery = new NabtoDiscoveryService();
+        discovery.setMissedRounds(1);
+        discovery.update(new String[] {"a", "b"}, 1);
+        discovery.update(new String[] {"a", "c"}, 2);
+        discovery.update(new String[] {"a", "b"}, 3);
+
+        NabtoDeviceDelta delta = discovery.deltaSince(1);
+        assertEquals(3, delta.getToVersion());
+        assertFalse(delta.isReset());
+        // b disappeared and appeared again, c appeared and disappeared again
+        assertTrue(delta.isEmpty());
+
+        delta = discovery.deltaSince(0);
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(delta.getAppeared().toArray()));
+
+        delta = discovery.deltaSince(2);
+        assertEquals(Arrays.asList("b"), Arrays.asList(delta.getAppeared().toArray()));
+        assertEquals(Arrays.asList("c"), Arrays.asList(delta.getDisappeared().toArray()));
+
+        assertTrue(discovery.deltaSince(42).isReset());
+    }
+}
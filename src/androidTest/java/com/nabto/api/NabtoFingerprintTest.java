@@ -0,0 +1,50 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoFingerprintTest {
+
+    private static final String HEX = "00017f80ff10a5c3e2d4b6987a5c3e21";
+
+    @Test
+    public void hexRoundTrip() {
+        NabtoFingerprint fingerprint = NabtoFingerprint.fromHex(HEX);
+        assertEquals(HEX, fingerprint.toHex());
+        assertSame(fingerprint.toHex(), fingerprint.toHex());
+        assertEquals((byte) 0xff, fingerprint.getBytes()[4]);
+
+        StringBuilder separated = new StringBuilder();
+        for (int i = 0; i < HEX.length(); i += 2) {
+            separated.append(i == 0 ? "" : ":").append(HEX.substring(i, i + 2).toUpperCase());
+        }
+        assertEquals(fingerprint, NabtoFingerprint.fromHex(separated.toString()));
+    }
+
+    @Test
+    public void equality() {
+        NabtoFingerprint fingerprint = NabtoFingerprint.fromHex(HEX);
+        byte[] bytes = fingerprint.getBytes();
+        assertTrue(fingerprint.matches(bytes));
+        assertEquals(fingerprint, NabtoFingerprint.fromBytes(bytes));
+        assertEquals(fingerprint.hashCode(), NabtoFingerprint.fromBytes(bytes).hashCode());
+
+        bytes[15] ^= 1;
+        assertFalse(fingerprint.matches(bytes));
+        assertNotEquals(fingerprint, NabtoFingerprint.fromBytes(bytes));
+        assertFalse(fingerprint.matches(new byte[8]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortHex() {
+        NabtoFingerprint.fromHex(HEX.substring(2));
+    }
+}
@@ -0,0 +1,104 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoManagedTunnelTest {
+    private static final NabtoTunnelSpec SPEC = new NabtoTunnelSpec("cam.nabto.net", "localhost",
+            554);
+    // a single port, so a tunnel can only get it while no other tunnel holds it
+    private static final int PORT = 47391;
+
+    private NabtoTestApi api;
+    private Session session;
+
+    @Before
+    public void setUp() {
+        api = new NabtoTestApi();
+        api.setTunnelPortRange(PORT, PORT);
+        session = new Session(new Object(), NabtoStatus.OK.toInteger());
+    }
+
+    private Tunnel openOther() {
+        return api.tunnelOpenTcp(0, "other.nabto.net", "localhost", 80, session);
+    }
+
+    @Test
+    public void reconnectKeepsPortReserved() throws InterruptedException {
+        final NabtoManagedTunnel managed = new NabtoManagedTunnel(api, session, 0, SPEC);
+        managed.setBackoff(100, 100);
+        assertEquals(NabtoStatus.OK, managed.open());
+        final Tunnel lost = managed.getTunnel();
+        assertEquals(PORT, managed.getLocalPort());
+        assertEquals(PORT, api.tunnelLocalPort(lost));
+
+        api.setState(lost, NabtoTunnelState.READY_FOR_RECONNECT);
+        NabtoTestApi.await("lost tunnel closed", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return api.isClosedInCore(lost);
+            }
+        });
+        // the port stays reserved between the tunnels
+        Tunnel other = openOther();
+        assertNotEquals(PORT, api.tunnelLocalPort(other));
+
+        NabtoTestApi.await("tunnel reopened", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return managed.getReconnectCount() == 1 && managed.getTunnel() != null;
+            }
+        });
+        Tunnel reopened = managed.getTunnel();
+        assertNotSame(lost, reopened);
+        assertEquals(PORT, api.tunnelLocalPort(reopened));
+        assertEquals(PORT, managed.getLocalPort());
+
+        managed.close();
+        assertTrue(api.isClosedInCore(reopened));
+        assertEquals(PORT, api.tunnelLocalPort(openOther()));
+    }
+
+    @Test
+    public void givingUpReleasesPort() throws InterruptedException {
+        final NabtoManagedTunnel managed = new NabtoManagedTunnel(api, session, 0, SPEC);
+        managed.setBackoff(1, 1);
+        managed.setMaxAttempts(2);
+        assertEquals(NabtoStatus.OK, managed.open());
+        api.failNextOpen(NabtoStatus.FAILED);
+        api.failNextOpen(NabtoStatus.FAILED);
+        api.setState(managed.getTunnel(), NabtoTunnelState.CLOSED);
+        NabtoTestApi.await("reconnecting given up", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return managed.isClosed();
+            }
+        });
+        assertEquals(0, managed.getReconnectCount());
+        assertEquals(PORT, api.tunnelLocalPort(openOther()));
+    }
+
+    @Test
+    public void closedSessionStopsReconnecting() throws InterruptedException {
+        final NabtoManagedTunnel managed = new NabtoManagedTunnel(api, session, 0, SPEC);
+        managed.setBackoff(1, 1);
+        assertEquals(NabtoStatus.OK, managed.open());
+        api.failNextOpen(NabtoStatus.INVALID_SESSION);
+        api.setState(managed.getTunnel(), NabtoTunnelState.CLOSED);
+        NabtoTestApi.await("reconnecting stopped", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return managed.isClosed();
+            }
+        });
+        assertEquals(PORT, api.tunnelLocalPort(openOther()));
+    }
+}
@@ -0,0 +1,79 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoPortAllocatorTest {
+
+    @Test
+    public void parallelReservationsAreUnique() throws Exception {
+        final NabtoPortAllocator allocator = new NabtoPortAllocator(47100, 47163);
+        final Set<Integer> ports = Collections.synchronizedSet(new HashSet<Integer>());
+        final CountDownLatch done = new CountDownLatch(32);
+        for (int i = 0; i < 32; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ports.add(allocator.reserve());
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(32, ports.size());
+        assertTrue(!ports.contains(0));
+    }
+
+    @Test
+    public void skipsPortsInUse() throws Exception {
+        NabtoPortAllocator allocator = new NabtoPortAllocator(47200, 47201);
+        ServerSocket socket = new ServerSocket(47200, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            assertEquals(47201, allocator.reserve());
+            assertEquals(0, allocator.reserve());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void releasedPortsAreReused() {
+        NabtoPortAllocator allocator = new NabtoPortAllocator(47300, 47300);
+        int port = allocator.reserve();
+        assertNotEquals(0, port);
+        assertEquals(0, allocator.reserve());
+        allocator.release(port);
+        assertEquals(port, allocator.reserve());
+    }
+
+    @Test
+    public void forgottenTunnelsReleaseTheirPorts() {
+        NabtoPortAllocator allocator = new NabtoPortAllocator(47400, 47400);
+        int port = allocator.reserve();
+        NabtoHandleLifecycle lifecycle = new NabtoHandleLifecycle();
+        lifecycle.holdPort(allocator, port);
+        Object tunnel = new Object();
+        NabtoHandleReaper.get().register(tunnel, NabtoHandleReaper.Type.TUNNEL, new Object(),
+                lifecycle, null);
+        assertEquals(0, allocator.reserve());
+
+        NabtoHandleReaper.get().forgetAll();
+        assertTrue(lifecycle.isClosed());
+        assertEquals(port, allocator.reserve());
+        assertNotNull(tunnel);
+    }
+}
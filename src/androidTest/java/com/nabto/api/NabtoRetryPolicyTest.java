@@ -0,0 +1,49 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoRetryPolicyTest {
+
+    @Test
+    public void retriesApiNotInitializedOnce() {
+        NabtoDefaultRetryPolicy policy = new NabtoDefaultRetryPolicy();
+        assertTrue(policy.retryDelayMillis(NabtoStatus.API_NOT_INITIALIZED, 1) >= 0);
+        assertTrue(policy.restartBeforeRetry(NabtoStatus.API_NOT_INITIALIZED));
+        assertEquals(NabtoRetryPolicy.NO_RETRY, policy.retryDelayMillis(NabtoStatus.API_NOT_INITIALIZED, 2));
+        assertEquals(NabtoRetryPolicy.NO_RETRY, policy.retryDelayMillis(NabtoStatus.UNLOCK_PK_FAILED, 1));
+    }
+
+    @Test
+    public void perStatusDecisions() {
+        NabtoDefaultRetryPolicy policy = new NabtoDefaultRetryPolicy(3, 10, 100, 10, 1000);
+        policy.retryOn(NabtoStatus.NO_NETWORK, false);
+        policy.noRetryOn(NabtoStatus.API_NOT_INITIALIZED);
+        assertTrue(policy.retryDelayMillis(NabtoStatus.NO_NETWORK, 2) >= 0);
+        assertFalse(policy.restartBeforeRetry(NabtoStatus.NO_NETWORK));
+        assertEquals(NabtoRetryPolicy.NO_RETRY, policy.retryDelayMillis(NabtoStatus.API_NOT_INITIALIZED, 1));
+    }
+
+    @Test
+    public void backoffIsBounded() {
+        NabtoDefaultRetryPolicy policy = new NabtoDefaultRetryPolicy(20, 10, 100, 10, 1000);
+        for (int attempt = 1; attempt < 20; attempt++) {
+            long delay = policy.retryDelayMillis(NabtoStatus.API_NOT_INITIALIZED, attempt);
+            assertTrue(delay >= 0 && delay <= 100);
+        }
+    }
+
+    @Test
+    public void budgetLimitsRetries() {
+        NabtoDefaultRetryPolicy policy = new NabtoDefaultRetryPolicy(2, 0, 0, 2, 60000);
+        assertTrue(policy.acquireRetryPermit());
+        assertTrue(policy.acquireRetryPermit());
+        assertFalse(policy.acquireRetryPermit());
+    }
+}
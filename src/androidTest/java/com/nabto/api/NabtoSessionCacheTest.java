@@ -0,0 +1,112 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoSessionCacheTest {
+    private NabtoTestApi api;
+
+    @Before
+    public void setUp() {
+        api = new NabtoTestApi();
+        api.setSessionCacheTimeout(60000);
+    }
+
+    @Test
+    public void repeatedOpenReusesSession() {
+        Session first = api.openSession("guest", "secret");
+        Session second = api.openSession("guest", "secret");
+        assertEquals(NabtoStatus.OK, second.getStatus());
+        assertNotSame(first, second);
+        assertSame(first.getHandle(), second.getHandle());
+        assertEquals(1, api.getOpenedSessions());
+
+        // a different password unlocks the key itself
+        Session other = api.openSession("guest", "other");
+        assertNotSame(first.getHandle(), other.getHandle());
+        assertEquals(2, api.getOpenedSessions());
+
+        assertEquals(NabtoStatus.OK, api.closeSession(first));
+        assertEquals(NabtoStatus.OK, api.closeSession(second));
+        assertEquals(NabtoStatus.OK, api.closeSession(other));
+        api.invalidateSessionCache();
+    }
+
+    @Test
+    public void closingTwiceFails() {
+        Session first = api.openSession("guest", "");
+        Session second = api.openSession("guest", "");
+        assertEquals(NabtoStatus.OK, api.closeSession(first));
+        assertEquals(NabtoStatus.INVALID_SESSION, api.closeSession(first));
+
+        // the second holder still holds its reference
+        assertFalse(api.isClosedInCore(first));
+        assertEquals(NabtoStatus.OK, api.closeSession(second));
+        assertEquals(NabtoStatus.INVALID_SESSION, api.closeSession(second));
+        assertFalse(api.isClosedInCore(second));
+        api.invalidateSessionCache();
+        assertTrue(api.isClosedInCore(second));
+    }
+
+    @Test
+    public void invalidateClosesUnusedSession() {
+        Session session = api.openSession("guest", "");
+        api.invalidateSessionCache("guest");
+        // in use, so it is closed when released
+        assertFalse(api.isClosedInCore(session));
+        assertEquals(NabtoStatus.OK, api.closeSession(session));
+        assertTrue(api.isClosedInCore(session));
+
+        session = api.openSession("guest", "");
+        assertEquals(2, api.getOpenedSessions());
+        assertEquals(NabtoStatus.OK, api.closeSession(session));
+        assertFalse(api.isClosedInCore(session));
+        api.invalidateSessionCache();
+        assertTrue(api.isClosedInCore(session));
+    }
+
+    @Test
+    public void maxLifetimeStopsReuse() throws InterruptedException {
+        api.setSessionCacheMaxLifetime(50);
+        Session held = api.openSession("guest", "");
+        Thread.sleep(100);
+        final Session fresh = api.openSession("guest", "");
+        assertNotSame(held.getHandle(), fresh.getHandle());
+        assertFalse(api.isClosedInCore(held));
+        assertEquals(NabtoStatus.OK, api.closeSession(held));
+        assertTrue(api.isClosedInCore(held));
+
+        // an unused session is closed when it reaches the lifetime
+        assertEquals(NabtoStatus.OK, api.closeSession(fresh));
+        NabtoTestApi.await("unused session closed", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return api.isClosedInCore(fresh);
+            }
+        });
+    }
+
+    @Test
+    public void collectedHolderReleasesReference() throws InterruptedException {
+        api.setSessionCacheTimeout(1);
+        long leaks = api.getHandleLeakReport().getSessionLeaks();
+        final Object handle = api.openSession("guest", "").getHandle();
+        final Session probe = new Session(handle, NabtoStatus.OK.toInteger());
+        NabtoTestApi.await("collected holder released", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return api.isClosedInCore(probe);
+            }
+        });
+        assertTrue(api.getHandleLeakReport().getSessionLeaks() > leaks);
+    }
+}
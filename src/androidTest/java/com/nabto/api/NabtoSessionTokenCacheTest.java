@@ -0,0 +1,128 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoSessionTokenCacheTest {
+    private NabtoTestApi api;
+
+    @Before
+    public void setUp() {
+        api = new NabtoTestApi();
+    }
+
+    @After
+    public void tearDown() {
+        // no fetch may reach a session closed in the core
+        assertEquals(0, api.getClosedTokenFetches());
+    }
+
+    private void awaitFetches(final int fetches) throws InterruptedException {
+        NabtoTestApi.await(fetches + " token fetches", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return api.getTokenFetches() >= fetches;
+            }
+        });
+    }
+
+    private void assertNoMoreFetches() throws InterruptedException {
+        int fetches = api.getTokenFetches();
+        Thread.sleep(150);
+        assertEquals(fetches, api.getTokenFetches());
+    }
+
+    @Test
+    public void tokenIsFetchedOnce() {
+        Session session = api.openSession("guest", "");
+        assertEquals("token-1", api.getSessionToken(session));
+        assertEquals("token-1", api.getSessionToken(session));
+        assertEquals(1, api.getTokenFetches());
+        api.closeSession(session);
+    }
+
+    @Test
+    public void expiredTokenIsFetchedAgain() throws InterruptedException {
+        api.setSessionTokenMaxAge(50, false);
+        Session session = api.openSession("guest", "");
+        assertEquals("token-1", api.getSessionToken(session));
+        Thread.sleep(100);
+        assertEquals("token-2", api.getSessionToken(session));
+        assertEquals("token-2", api.getSessionToken(session));
+        api.closeSession(session);
+    }
+
+    @Test
+    public void closeSessionInvalidatesToken() throws InterruptedException {
+        api.setSessionTokenMaxAge(40, true);
+        Session session = api.openSession("guest", "");
+        api.getSessionToken(session);
+        awaitFetches(3);
+
+        assertEquals(NabtoStatus.OK, api.closeSession(session));
+        assertNull(NabtoSessionData.of(session).token);
+        assertNoMoreFetches();
+    }
+
+    @Test
+    public void releasingCachedHolderInvalidatesToken() throws InterruptedException {
+        api.setSessionCacheTimeout(60000);
+        api.setSessionTokenMaxAge(40, true);
+        Session first = api.openSession("guest", "");
+        Session second = api.openSession("guest", "");
+        api.getSessionToken(first);
+        awaitFetches(2);
+
+        assertEquals(NabtoStatus.OK, api.closeSession(first));
+        assertNull(NabtoSessionData.of(first).token);
+        // the session stays open in the core for the other holder, but the refresh stops
+        assertNoMoreFetches();
+        assertEquals("token-" + (api.getTokenFetches() + 1), api.getSessionToken(second));
+        assertEquals(NabtoStatus.OK, api.closeSession(second));
+        assertNull(NabtoSessionData.of(second).token);
+        assertNoMoreFetches();
+        api.invalidateSessionCache();
+    }
+
+    @Test
+    public void collectedSessionStopsRefresh() throws InterruptedException {
+        api.setSessionTokenMaxAge(40, true);
+        Session session = api.openSession("guest", "");
+        final Session probe = new Session(session.getHandle(), NabtoStatus.OK.toInteger());
+        api.getSessionToken(session);
+        awaitFetches(2);
+
+        session = null;
+        NabtoTestApi.await("collected session closed", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return api.isClosedInCore(probe);
+            }
+        });
+        assertNoMoreFetches();
+    }
+
+    @Test
+    public void setMaxAgeCancelsRefresh() throws InterruptedException {
+        api.setSessionTokenMaxAge(40, true);
+        Session session = api.openSession("guest", "");
+        api.getSessionToken(session);
+        awaitFetches(2);
+
+        api.setSessionTokenMaxAge(0, false);
+        assertNoMoreFetches();
+        // the cached token is still used
+        int fetches = api.getTokenFetches();
+        api.getSessionToken(session);
+        assertEquals(fetches, api.getTokenFetches());
+        api.closeSession(session);
+    }
+}
@@ -0,0 +1,166 @@
+package com.nabto.api;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A {@link NabtoApi} on a fake core, so the handle bookkeeping of the wrapper can be tested
+ * without the native library. Sessions and tunnels open successfully unless a failure status is
+ * queued. Tunnels report the state set with {@link #setState(Tunnel, NabtoTunnelState)}, by
+ * default the state set with {@link #setOpenState(NabtoTunnelState)}, initially
+ * {@link NabtoTunnelState#LOCAL}.
+ */
+@SuppressWarnings("deprecation")
+class NabtoTestApi extends NabtoApi {
+    private final Map<Tunnel, NabtoTunnelState> states =
+            new IdentityHashMap<Tunnel, NabtoTunnelState>();
+    private final Map<Tunnel, Integer> ports = new IdentityHashMap<Tunnel, Integer>();
+    private final List<Tunnel> closedTunnels = new ArrayList<Tunnel>();
+    private final List<NabtoStatus> openFailures = new ArrayList<NabtoStatus>();
+    private final List<Object> closedSessions = new ArrayList<Object>();
+    private int openedSessions;
+    private int tokenFetches;
+    private int closedTokenFetches;
+    private NabtoTunnelState openState = NabtoTunnelState.LOCAL;
+    private int nextPort = 20000;
+
+    interface Condition {
+        boolean isTrue();
+    }
+
+    /**
+     * Wait up to five seconds for a condition, running the garbage collector meanwhile.
+     */
+    static void await(String what, Condition condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.isTrue(); i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertTrue(what, condition.isTrue());
+    }
+
+    NabtoTestApi() {
+        super(new NabtoAssetManager() {
+            @Override
+            public String getNabtoHomeDirectory() {
+                return System.getProperty("java.io.tmpdir") + File.separator + "nabto-test";
+            }
+
+            @Override
+            public String getNabtoResourceDirectory() {
+                return getNabtoHomeDirectory();
+            }
+        });
+        getTunnelMonitor().setPollPeriods(5, 5);
+    }
+
+    synchronized void failNextOpen(NabtoStatus status) {
+        openFailures.add(status);
+    }
+
+    synchronized void setOpenState(NabtoTunnelState state) {
+        openState = state;
+    }
+
+    synchronized void setState(Tunnel tunnel, NabtoTunnelState state) {
+        states.put(tunnel, state);
+    }
+
+    synchronized List<Tunnel> getClosedTunnels() {
+        return new ArrayList<Tunnel>(closedTunnels);
+    }
+
+    synchronized int getOpenedSessions() {
+        return openedSessions;
+    }
+
+    synchronized int getTokenFetches() {
+        return tokenFetches;
+    }
+
+    /**
+     * @return The number of token reads of sessions already closed in the core.
+     */
+    synchronized int getClosedTokenFetches() {
+        return closedTokenFetches;
+    }
+
+    synchronized boolean isClosedInCore(Session session) {
+        return closedSessions.contains(session.getHandle());
+    }
+
+    synchronized boolean isClosedInCore(Tunnel tunnel) {
+        for (Tunnel closed : closedTunnels) {
+            if (closed.getHandle() == tunnel.getHandle()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    synchronized Session coreOpenSession(String id, String password) {
+        if (!openFailures.isEmpty()) {
+            return new Session(null, openFailures.remove(0).toInteger());
+        }
+        openedSessions++;
+        return new Session(new Object(), NabtoStatus.OK.toInteger());
+    }
+
+    @Override
+    synchronized NabtoStatus coreCloseSession(Session session) {
+        if (closedSessions.contains(session.getHandle())) {
+            return NabtoStatus.INVALID_SESSION;
+        }
+        closedSessions.add(session.getHandle());
+        return NabtoStatus.OK;
+    }
+
+    @Override
+    synchronized String coreGetSessionToken(Session session) {
+        if (closedSessions.contains(session.getHandle())) {
+            closedTokenFetches++;
+            return null;
+        }
+        tokenFetches++;
+        return "token-" + tokenFetches;
+    }
+
+    @Override
+    synchronized Tunnel coreTunnelOpenTcp(int localPort, String nabtoHost, String remoteHost,
+                                          int remotePort, Session session) {
+        if (!openFailures.isEmpty()) {
+            return new Tunnel(null, openFailures.remove(0).toInteger());
+        }
+        Tunnel tunnel = new Tunnel(new Object(), NabtoStatus.OK.toInteger());
+        states.put(tunnel, openState);
+        ports.put(tunnel, localPort != 0 ? localPort : nextPort++);
+        return tunnel;
+    }
+
+    @Override
+    synchronized NabtoStatus coreTunnelClose(Tunnel tunnel) {
+        closedTunnels.add(tunnel);
+        for (Tunnel open : states.keySet()) {
+            if (open.getHandle() == tunnel.getHandle()) {
+                states.put(open, NabtoTunnelState.CLOSED);
+            }
+        }
+        return NabtoStatus.OK;
+    }
+
+    @Override
+    synchronized TunnelInfoResult coreTunnelInfo(Tunnel tunnel) {
+        NabtoTunnelState state = states.get(tunnel);
+        if (state == null) {
+            return new TunnelInfoResult(0, 0, 0, 0, NabtoStatus.INVALID_TUNNEL.toInteger());
+        }
+        return new TunnelInfoResult(1, state.toInteger(), 0, ports.get(tunnel),
+                NabtoStatus.OK.toInteger());
+    }
+}
@@ -0,0 +1,117 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoTunnelBatchTest {
+    private static final List<NabtoTunnelSpec> SPECS = Arrays.asList(
+            new NabtoTunnelSpec("a.nabto.net", "localhost", 80),
+            new NabtoTunnelSpec("b.nabto.net", "localhost", 80),
+            new NabtoTunnelSpec("c.nabto.net", "localhost", 80));
+
+    private NabtoTestApi api;
+    private Session session;
+
+    @Before
+    public void setUp() {
+        api = new NabtoTestApi();
+        session = new Session(new Object(), NabtoStatus.OK.toInteger());
+    }
+
+    private Tunnel opened(final NabtoTunnelBatch batch, final int index)
+            throws InterruptedException {
+        NabtoTestApi.await("tunnel " + index + " opened", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return batch.getTunnel(index) != null;
+            }
+        });
+        return batch.getTunnel(index);
+    }
+
+    private static TunnelInfoResult get(Future<TunnelInfoResult> future)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void readyFuturesCompleteWithConnectedTunnels()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        api.setOpenState(NabtoTunnelState.CONNECTING);
+        NabtoTunnelBatch batch = api.tunnelOpenTcpBatch(SPECS, session);
+        Future<List<Tunnel>> firstTwo = batch.firstReady(2);
+        Future<List<Tunnel>> all = batch.allReady();
+        Tunnel a = opened(batch, 0);
+        Tunnel b = opened(batch, 1);
+        Tunnel c = opened(batch, 2);
+        Thread.sleep(50);
+        assertFalse(firstTwo.isDone());
+
+        api.setState(b, NabtoTunnelState.REMOTE_P2P);
+        assertEquals(NabtoTunnelState.REMOTE_P2P, get(batch.getInfo(1)).getTunnelState());
+        api.setState(a, NabtoTunnelState.LOCAL);
+        assertEquals(Arrays.asList(b, a), firstTwo.get(5, TimeUnit.SECONDS));
+        assertFalse(all.isDone());
+
+        // a tunnel that does not connect completes the batch, but is not ready
+        api.setState(c, NabtoTunnelState.READY_FOR_RECONNECT);
+        assertEquals(Arrays.asList(b, a), all.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(b), batch.firstReady(1).get(5, TimeUnit.SECONDS));
+
+        batch.close();
+        assertTrue(api.isClosedInCore(a));
+        assertTrue(api.isClosedInCore(b));
+        assertTrue(api.isClosedInCore(c));
+    }
+
+    @Test
+    public void failedOpenCompletesWithStatus()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        api.failNextOpen(NabtoStatus.FAILED);
+        NabtoTunnelBatch batch = api.tunnelOpenTcpBatch(SPECS, session);
+        List<Tunnel> ready = batch.allReady().get(5, TimeUnit.SECONDS);
+        assertEquals(2, ready.size());
+        int failed = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            TunnelInfoResult info = get(batch.getInfo(i));
+            if (info.getStatus() == NabtoStatus.FAILED) {
+                assertEquals(NabtoTunnelState.CLOSED, info.getTunnelState());
+                assertNull(batch.getTunnel(i));
+                failed++;
+            } else {
+                assertEquals(NabtoTunnelState.LOCAL, info.getTunnelState());
+                assertTrue(ready.contains(batch.getTunnel(i)));
+            }
+        }
+        assertEquals(1, failed);
+        batch.close();
+    }
+
+    @Test
+    public void rejectsInvalidCount() {
+        NabtoTunnelBatch batch = api.tunnelOpenTcpBatch(SPECS, session);
+        try {
+            batch.firstReady(4);
+            fail("waited for more tunnels than in the batch");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        batch.close();
+    }
+}
@@ -0,0 +1,104 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoTunnelHttpClientTest {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static InputStream stream(String data) {
+        return new ByteArrayInputStream(data.getBytes(ISO_8859_1));
+    }
+
+    private static NabtoTunnelHttpClient.Exchange read(String data, int maxBodySize)
+            throws IOException {
+        return NabtoTunnelHttpClient.readResponse(stream(data), "GET", maxBodySize);
+    }
+
+    private static String body(NabtoTunnelHttpClient.Exchange exchange) {
+        ByteBuffer body = exchange.response.getBody();
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        return new String(bytes, ISO_8859_1);
+    }
+
+    @Test
+    public void chunked() throws IOException {
+        NabtoTunnelHttpClient.Exchange exchange = read("HTTP/1.1 200 OK\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n6;name=value\r\n world\r\n0\r\nTrailer: x\r\n\r\n", 1024);
+        assertEquals(200, exchange.response.getStatusCode());
+        assertEquals("hello world", body(exchange));
+        assertTrue(exchange.keepAlive);
+    }
+
+    @Test
+    public void contentLength() throws IOException {
+        InputStream in = stream("HTTP/1.1 404 Not Found\r\nContent-Length: 3\r\n\r\nabc"
+                + "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+        NabtoTunnelHttpClient.Exchange exchange = NabtoTunnelHttpClient.readResponse(in, "GET",
+                1024);
+        assertEquals(404, exchange.response.getStatusCode());
+        assertEquals("Not Found", exchange.response.getReason());
+        assertEquals("abc", body(exchange));
+        assertTrue(exchange.keepAlive);
+
+        exchange = NabtoTunnelHttpClient.readResponse(in, "GET", 1024);
+        assertEquals("", body(exchange));
+        assertFalse(exchange.keepAlive);
+    }
+
+    @Test
+    public void closeDelimited() throws IOException {
+        NabtoTunnelHttpClient.Exchange exchange = read("HTTP/1.1 100 Continue\r\n\r\n"
+                + "HTTP/1.0 200 OK\r\n\r\nuntil the end", 13);
+        assertEquals(200, exchange.response.getStatusCode());
+        assertEquals("until the end", body(exchange));
+        assertFalse(exchange.keepAlive);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNegativeContentLength() throws IOException {
+        read("HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\n", 1024);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsContentLengthAboveMax() throws IOException {
+        read("HTTP/1.1 200 OK\r\nContent-Length: 2147483648\r\n\r\n", 1024);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNegativeChunkSize() throws IOException {
+        read("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n-5\r\nhello\r\n0\r\n\r\n",
+                1024);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOverflowingChunkSize() throws IOException {
+        read("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n7fffffff\r\nx\r\n0\r\n\r\n", Integer.MAX_VALUE);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCloseDelimitedBodyAboveMax() throws IOException {
+        read("HTTP/1.1 200 OK\r\n\r\nuntil the end", 12);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidStatusLine() throws IOException {
+        read("HTTP/1.1 OK\r\n\r\n", 1024);
+    }
+}
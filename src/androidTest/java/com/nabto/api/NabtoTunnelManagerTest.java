@@ -0,0 +1,91 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoTunnelManagerTest {
+    private static final NabtoTunnelSpec SPEC = new NabtoTunnelSpec("cam.nabto.net", "localhost",
+            554);
+
+    private NabtoTestApi api;
+    private NabtoTunnelManager manager;
+    private Session session;
+
+    @Before
+    public void setUp() {
+        api = new NabtoTestApi();
+        manager = api.getTunnelManager();
+        session = new Session(new Object(), NabtoStatus.OK.toInteger());
+    }
+
+    @After
+    public void tearDown() {
+        manager.setIdleLimit(0);
+        manager.setWindowBudget(0, 0);
+    }
+
+    private Tunnel open(String nabtoHost) {
+        return api.tunnelOpenTcp(0, nabtoHost, "localhost", 80, session);
+    }
+
+    @Test
+    public void idleLimitSkipsTunnelsHeldByTheWrapper() throws InterruptedException {
+        Tunnel raw = open("raw.nabto.net");
+        NabtoTunnelPool pool = new NabtoTunnelPool(api, 60000, 4);
+        Tunnel pooled = pool.acquire(session, SPEC);
+        NabtoManagedTunnel managed = new NabtoManagedTunnel(api, session, 0, SPEC);
+        assertEquals(NabtoStatus.OK, managed.open());
+
+        manager.setIdleLimit(1);
+        Thread.sleep(10);
+        manager.enforce(null);
+        assertEquals(Arrays.asList(raw), api.getClosedTunnels());
+
+        // a released pooled tunnel is idle again
+        pool.release(pooled);
+        Thread.sleep(10);
+        manager.enforce(null);
+        assertTrue(api.isClosedInCore(pooled));
+        assertFalse(api.isClosedInCore(managed.getTunnel()));
+        assertEquals(Arrays.asList(managed.getTunnel()), manager.getOpenTunnels());
+
+        managed.close();
+        pool.close();
+        assertTrue(manager.getOpenTunnels().isEmpty());
+    }
+
+    @Test
+    public void windowBudgetSkipsTunnelsHeldByTheWrapper() throws InterruptedException {
+        NabtoTunnelPool pool = new NabtoTunnelPool(api, 60000, 4);
+        Tunnel pooled = pool.acquire(session, SPEC);
+        Thread.sleep(2);
+        Tunnel older = open("older.nabto.net");
+        Thread.sleep(2);
+        Tunnel newer = open("newer.nabto.net");
+
+        // room for two tunnels of 100 + 100: the least recent tunnel not held is closed
+        manager.setWindowBudget(400, 100);
+        assertEquals(Arrays.asList(older), api.getClosedTunnels());
+        assertEquals(400, manager.getWindowUsage());
+
+        // a released pooled tunnel is active from its release
+        pool.release(pooled);
+        Tunnel another = open("another.nabto.net");
+        assertTrue(api.isClosedInCore(newer));
+        assertEquals(Arrays.asList(another, pooled), manager.getOpenTunnels());
+
+        api.tunnelClose(another);
+        pool.close();
+        assertTrue(api.isClosedInCore(pooled));
+    }
+}
@@ -0,0 +1,120 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoTunnelMonitorTest {
+    private NabtoTestApi api;
+    private NabtoTunnelMonitor monitor;
+    private Tunnel tunnel;
+
+    @Before
+    public void setUp() {
+        api = new NabtoTestApi();
+        monitor = api.getTunnelMonitor();
+        tunnel = api.tunnelOpenTcp(0, "cam.nabto.net", "localhost", 554,
+                new Session(new Object(), NabtoStatus.OK.toInteger()));
+        api.setState(tunnel, NabtoTunnelState.CONNECTING);
+    }
+
+    private static NabtoTunnelState next(BlockingQueue<NabtoTunnelState> states)
+            throws InterruptedException {
+        NabtoTunnelState state = states.poll(5, TimeUnit.SECONDS);
+        if (state == null) {
+            throw new AssertionError("No state change");
+        }
+        return state;
+    }
+
+    @Test
+    public void listenerSeesTransitionsInOrder() throws InterruptedException {
+        final BlockingQueue<NabtoTunnelState> states = new LinkedBlockingQueue<NabtoTunnelState>();
+        final BlockingQueue<NabtoTunnelState> previous =
+                new LinkedBlockingQueue<NabtoTunnelState>();
+        monitor.addListener(tunnel, new TunnelStateListener() {
+            @Override
+            public void onTunnelStateChanged(Tunnel tunnel, NabtoTunnelState previousState,
+                                             TunnelInfoResult info) {
+                if (previousState != null) {
+                    previous.add(previousState);
+                }
+                states.add(info.getTunnelState());
+            }
+        });
+        assertEquals(NabtoTunnelState.CONNECTING, next(states));
+        api.setState(tunnel, NabtoTunnelState.REMOTE_RELAY);
+        assertEquals(NabtoTunnelState.REMOTE_RELAY, next(states));
+        assertEquals(NabtoTunnelState.CONNECTING, next(previous));
+        api.setState(tunnel, NabtoTunnelState.LOCAL);
+        assertEquals(NabtoTunnelState.LOCAL, next(states));
+        assertEquals(20000, monitor.getLastInfo(tunnel).getPort());
+
+        api.tunnelClose(tunnel);
+        assertEquals(NabtoTunnelState.CLOSED, next(states));
+        // a closed tunnel is dropped
+        NabtoTestApi.await("closed tunnel dropped", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return monitor.getLastInfo(tunnel) == null;
+            }
+        });
+        assertNull(states.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void futuresCompleteOnMatchingState()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Future<TunnelInfoResult> connected = monitor.awaitConnection(tunnel);
+        Future<TunnelInfoResult> p2p = monitor.awaitState(tunnel, NabtoTunnelState.REMOTE_P2P);
+        Thread.sleep(50);
+        assertFalse(connected.isDone());
+
+        api.setState(tunnel, NabtoTunnelState.REMOTE_RELAY);
+        assertEquals(NabtoTunnelState.REMOTE_RELAY,
+                connected.get(5, TimeUnit.SECONDS).getTunnelState());
+        assertFalse(p2p.isDone());
+
+        // futures also complete when the tunnel is closed
+        api.tunnelClose(tunnel);
+        assertEquals(NabtoTunnelState.CLOSED, p2p.get(5, TimeUnit.SECONDS).getTunnelState());
+        TunnelInfoResult closed = monitor.awaitConnection(tunnel).get(5, TimeUnit.SECONDS);
+        assertEquals(NabtoTunnelState.CLOSED, closed.getTunnelState());
+    }
+
+    @Test
+    public void removedListenerStopsWatching() throws InterruptedException {
+        final BlockingQueue<NabtoTunnelState> states = new LinkedBlockingQueue<NabtoTunnelState>();
+        TunnelStateListener listener = new TunnelStateListener() {
+            @Override
+            public void onTunnelStateChanged(Tunnel tunnel, NabtoTunnelState previousState,
+                                             TunnelInfoResult info) {
+                states.add(info.getTunnelState());
+            }
+        };
+        monitor.addListener(tunnel, listener);
+        assertEquals(NabtoTunnelState.CONNECTING, next(states));
+        TunnelInfoResult info = monitor.getLastInfo(tunnel);
+        assertSame(info, monitor.getLastInfo(tunnel));
+
+        monitor.removeListener(tunnel, listener);
+        assertNull(monitor.getLastInfo(tunnel));
+        api.setState(tunnel, NabtoTunnelState.LOCAL);
+        assertNull(states.poll(50, TimeUnit.MILLISECONDS));
+        api.tunnelClose(tunnel);
+    }
+}
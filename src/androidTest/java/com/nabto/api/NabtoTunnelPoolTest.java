@@ -0,0 +1,152 @@
+package com.nabto.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class NabtoTunnelPoolTest {
+    private static final NabtoTunnelSpec CAM = new NabtoTunnelSpec("cam.nabto.net", "localhost",
+            554);
+    private static final NabtoTunnelSpec WEB = new NabtoTunnelSpec("cam.nabto.net", "localhost",
+            80);
+
+    private NabtoTestApi api;
+    private Session session;
+
+    @Before
+    public void setUp() {
+        api = new NabtoTestApi();
+        session = new Session(new Object(), NabtoStatus.OK.toInteger());
+    }
+
+    @Test
+    public void releasedTunnelExpiresAfterIdleTimeout() throws InterruptedException {
+        NabtoTunnelPool pool = new NabtoTunnelPool(api, 50, 4);
+        final Tunnel tunnel = pool.acquire(session, CAM);
+        assertSame(tunnel, pool.acquire(session, new NabtoTunnelSpec("cam.nabto.net",
+                "localhost", 554)));
+        assertEquals(1, pool.size());
+
+        pool.release(tunnel);
+        Thread.sleep(100);
+        // still acquired once
+        assertFalse(api.isClosedInCore(tunnel));
+
+        pool.release(tunnel);
+        NabtoTestApi.await("idle tunnel closed", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return api.isClosedInCore(tunnel);
+            }
+        });
+        assertEquals(0, pool.size());
+        try {
+            pool.release(tunnel);
+            fail("released a tunnel not acquired");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void acquireCancelsExpiry() throws InterruptedException {
+        NabtoTunnelPool pool = new NabtoTunnelPool(api, 50, 4);
+        Tunnel tunnel = pool.acquire(session, CAM);
+        pool.release(tunnel);
+        assertSame(tunnel, pool.acquire(session, CAM));
+        Thread.sleep(100);
+        assertFalse(api.isClosedInCore(tunnel));
+        pool.release(tunnel);
+        pool.close();
+        assertTrue(api.isClosedInCore(tunnel));
+    }
+
+    @Test
+    public void capClosesLeastRecentlyUsedUnusedTunnel() {
+        NabtoTunnelPool pool = new NabtoTunnelPool(api, 60000, 1);
+        Tunnel cam = pool.acquire(session, CAM);
+        Tunnel web = pool.acquire(session, WEB);
+        // both in use, so the cap is exceeded
+        assertEquals(2, pool.size());
+        assertTrue(api.getClosedTunnels().isEmpty());
+
+        pool.release(cam);
+        pool.release(web);
+        Tunnel other = pool.acquire(new Session(new Object(), NabtoStatus.OK.toInteger()), CAM);
+        assertNotSame(cam, other);
+        assertEquals(Arrays.asList(cam, web), api.getClosedTunnels());
+        assertEquals(1, pool.size());
+        pool.release(other);
+        pool.close();
+    }
+
+    @Test
+    public void lostTunnelIsEvicted() throws InterruptedException {
+        final NabtoTunnelPool pool = new NabtoTunnelPool(api, 60000, 4);
+        final Tunnel unused = pool.acquire(session, CAM);
+        pool.release(unused);
+        api.setState(unused, NabtoTunnelState.READY_FOR_RECONNECT);
+        NabtoTestApi.await("lost unused tunnel closed", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return api.isClosedInCore(unused);
+            }
+        });
+
+        final Tunnel used = pool.acquire(session, CAM);
+        assertNotSame(unused, used);
+        api.setState(used, NabtoTunnelState.CLOSED);
+        NabtoTestApi.await("lost tunnel in use dropped", new NabtoTestApi.Condition() {
+            @Override
+            public boolean isTrue() {
+                return pool.size() == 0;
+            }
+        });
+        // closed by its holder, not under it
+        assertFalse(api.isClosedInCore(used));
+        Tunnel replacement = pool.acquire(session, CAM);
+        assertNotSame(used, replacement);
+        pool.release(used);
+        assertTrue(api.isClosedInCore(used));
+        pool.release(replacement);
+        pool.close();
+    }
+
+    @Test
+    public void closeWaitsForTunnelsInUse() {
+        NabtoTunnelPool pool = new NabtoTunnelPool(api, 60000, 4);
+        Tunnel cam = pool.acquire(session, CAM);
+        Tunnel web = pool.acquire(session, WEB);
+        pool.release(web);
+        pool.close();
+        assertEquals(Arrays.asList(web), api.getClosedTunnels());
+        try {
+            pool.acquire(session, CAM);
+            fail("acquired from a closed pool");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        pool.release(cam);
+        assertTrue(api.isClosedInCore(cam));
+    }
+
+    @Test
+    public void failedOpenIsNotPooled() {
+        NabtoTunnelPool pool = new NabtoTunnelPool(api, 60000, 4);
+        api.failNextOpen(NabtoStatus.FAILED);
+        assertEquals(NabtoStatus.FAILED, pool.acquire(session, CAM).getStatus());
+        assertEquals(0, pool.size());
+        pool.close();
+    }
+}
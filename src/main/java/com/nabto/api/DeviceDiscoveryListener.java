@@ -0,0 +1,17 @@
+package com.nabto.api;
+
+import java.util.Collection;
+
+/**
+ * Receives changes of the local devices found by a {@link NabtoDiscoveryService}.
+ */
+public interface DeviceDiscoveryListener {
+    /**
+     * Called after a discovery round in which devices appeared or disappeared. Callbacks are
+     * delivered in order on a background thread.
+     *
+     * @param appeared     The IDs of devices found that were not known before.
+     * @param disappeared  The IDs of devices no longer found.
+     */
+    void onDevicesChanged(Collection<String> appeared, Collection<String> disappeared);
+}
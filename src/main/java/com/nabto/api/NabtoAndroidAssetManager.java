@@ -2,26 +2,42 @@ package com.nabto.api;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Handles the few remaining Nabto assets used by the {@link NabtoApi} on Android that have not been embedded in the
  * SDK directly. This includes skin bundles.
+ * <p>
+ *     The "share" assets are installed in the app files directory. The install is stamped with
+ *     the app version, so it is skipped entirely until the app is updated. After an update only
+ *     the files that changed according to the bundled {@link NabtoAssetManifest} are copied.
+ * </p>
  */
 public class NabtoAndroidAssetManager implements NabtoAssetManager {
+    static final String INSTALL_STAMP_FILE_NAME = ".nabto_installed";
+
     private Context context;
     private File nabtoHomeDirectory;
     private File nabtoResourceDirectory;
     private File nabtoNativeLibraryDirectory;
+    private boolean assetsInstalled;
+    private volatile long installNanos = -1;
 
     /**
      * Creates a new Nabto asset manager for Android.
@@ -29,6 +45,20 @@ public class NabtoAndroidAssetManager implements NabtoAssetManager {
      * @param context The Android app context.
      */
     public NabtoAndroidAssetManager(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * Creates a new Nabto asset manager for Android, optionally without installing the assets.
+     * <p>
+     *     A lazy asset manager installs the assets when {@link #installAssets()} is first called,
+     *     which {@link NabtoApi#installResources()} does when resources are installed.
+     * </p>
+     *
+     * @param context The Android app context.
+     * @param lazyInstall Whether to defer installing the assets.
+     */
+    public NabtoAndroidAssetManager(Context context, boolean lazyInstall) {
         this.context = context;
         ApplicationInfo info = context.getApplicationInfo();
 
@@ -40,8 +70,9 @@ public class NabtoAndroidAssetManager implements NabtoAssetManager {
         Log.d(this.getClass().getSimpleName(), "App resource dir: " + getNabtoResourceDirectory());
         Log.d(this.getClass().getSimpleName(), "App dir: " + getNabtoHomeDirectory());
 
-        copyDirContentsToLocation(context.getAssets(), "share",
-                new File(context.getFilesDir() + "/share"), false);
+        if (!lazyInstall) {
+            installAssets();
+        }
     }
 
     /**
@@ -64,58 +95,188 @@ public class NabtoAndroidAssetManager implements NabtoAssetManager {
 
     String getNabtoNativeLibraryDirectory() { return nabtoNativeLibraryDirectory.getAbsolutePath(); }
 
-    private void copyDirContentsToLocation(AssetManager manager,
-                                           String fileToCopy, File fileLocation, boolean overwrite) {
-        try {
-            String[] filesInDir = manager.list(fileToCopy);
-            if (filesInDir.length == 0) {
-                // this is a file
-                copyFromAssets(manager, fileToCopy, fileLocation, overwrite);
-            } else {
-                for (String fileInDir : filesInDir) {
-                    copyDirContentsToLocation(manager, fileToCopy + "/"
-                            + fileInDir, new File(fileLocation + "/"
-                            + fileInDir), overwrite);
+    /**
+     * Install the assets unless they have already been installed by this asset manager.
+     */
+    public synchronized void installAssets() {
+        if (!assetsInstalled) {
+            boolean traced = NabtoTrace.begin("Nabto installAssets");
+            long start = System.nanoTime();
+            try {
+                installAssets(context.getAssets(), new File(context.getFilesDir(), "share"));
+            } finally {
+                NabtoTrace.end(traced);
+            }
+            installNanos = System.nanoTime() - start;
+            assetsInstalled = true;
+        }
+    }
+
+    /**
+     * @return The time the asset install took in nanoseconds, or -1 if it has not run.
+     */
+    long getInstallNanos() {
+        return installNanos;
+    }
+
+    /**
+     * Install the "share" assets unless the install stamp matches the app version. With a
+     * bundled manifest only changed files are copied and files no longer bundled are deleted,
+     * otherwise all assets are copied.
+     */
+    private void installAssets(AssetManager manager, File shareDirectory) {
+        String version = appVersion();
+        File stamp = new File(shareDirectory, INSTALL_STAMP_FILE_NAME);
+        if (version != null && version.equals(readStampVersion(stamp))) {
+            Log.d(this.getClass().getSimpleName(), "Assets up to date for version " + version);
+            return;
+        }
+        NabtoAssetManifest manifest = readBundledManifest(manager);
+        if (manifest.isEmpty()) {
+            Log.d(this.getClass().getSimpleName(), "No asset manifest, copying all assets");
+            Map<String, File> files = new LinkedHashMap<String, File>();
+            listDirContents(manager, "share", shareDirectory, true, files);
+            new NabtoAssetCopier(manager).copyAll(files);
+        } else {
+            NabtoAssetManifest installed = readInstalledManifest(stamp);
+            List<NabtoAssetManifest.Entry> changed = manifest.changedSince(installed, shareDirectory);
+            Log.d(this.getClass().getSimpleName(), "Copying " + changed.size() + " of "
+                    + manifest.entries().size() + " asset files");
+            Map<String, File> files = new LinkedHashMap<String, File>();
+            for (NabtoAssetManifest.Entry entry : changed) {
+                files.put("share/" + entry.path, new File(shareDirectory, entry.path));
+            }
+            new NabtoAssetCopier(manager).copyAll(files);
+            for (NabtoAssetManifest.Entry entry : manifest.removedSince(installed)) {
+                File file = new File(shareDirectory, entry.path);
+                if (file.exists() && !file.delete()) {
+                    Log.d(this.getClass().getSimpleName(), "Failed to delete " + file);
                 }
             }
+        }
+        writeStamp(stamp, version, manifest);
+    }
+
+    /**
+     * @return The app version code and last update time, which change with each app install,
+     *         or {@code null} if the package info is not available.
+     */
+    private String appVersion() {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+            return info.versionCode + " " + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.d(this.getClass().getSimpleName(), "Failed to get package info: " + e);
+            return null;
+        } catch (RuntimeException e) {
+            Log.d(this.getClass().getSimpleName(), "Failed to get package info: " + e);
+            return null;
+        }
+    }
+
+    private NabtoAssetManifest readBundledManifest(AssetManager manager) {
+        InputStream in = null;
+        try {
+            in = manager.open(NabtoAssetManifest.ASSET_NAME);
+            return NabtoAssetManifest.read(in);
         } catch (IOException e) {
-            throw new IllegalArgumentException(
-                    "Could not get assets from directory " + fileToCopy, e);
+            return NabtoAssetManifest.empty();
+        } finally {
+            closeQuietly(in);
         }
     }
 
     /**
-     * Copy the specified asset from assets to the specified fileLocation
+     * The stamp holds the app version on a comment line, followed by the manifest of the
+     * installed files.
      */
-    private void copyFromAssets(AssetManager manager, String asset,
-                                File fileLocation, boolean overwrite) {
-        // Create necessary directory structure
-        if (!fileLocation.getParentFile().exists() && !fileLocation.getParentFile().mkdirs()) {
-            throw new IllegalArgumentException("Could not create directory: " + fileLocation.getParentFile().getPath());
+    private String readStampVersion(File stamp) {
+        if (!stamp.isFile()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(stamp), "UTF-8"));
+            String line = reader.readLine();
+            return line != null && line.startsWith("# ") ? line.substring(2) : null;
+        } catch (IOException e) {
+            Log.d(this.getClass().getSimpleName(), "Failed to read " + stamp + ": " + e);
+            return null;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private NabtoAssetManifest readInstalledManifest(File stamp) {
+        if (!stamp.isFile()) {
+            return NabtoAssetManifest.empty();
         }
-        Log.d(this.getClass().getSimpleName(), "Writing asset file: " + asset + " to "
-                + fileLocation.getAbsolutePath());
-        InputStream inStream;
+        InputStream in = null;
         try {
-            inStream = new BufferedInputStream(manager.open(asset,
-                                                            AssetManager.ACCESS_STREAMING));
+            in = new FileInputStream(stamp);
+            return NabtoAssetManifest.read(in);
         } catch (IOException e) {
-            Log.w(this.getClass().getSimpleName(), "Could not read asset file: " + asset);
-            // don't throw - it is ok to miss a file in the app bundle (asset manager used with
-            // different file configurations), just don't install in that case
+            Log.d(this.getClass().getSimpleName(), "Failed to read " + stamp + ": " + e);
+            return NabtoAssetManifest.empty();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeStamp(File stamp, String version, NabtoAssetManifest manifest) {
+        if (version == null) {
             return;
         }
+        if (!stamp.getParentFile().exists() && !stamp.getParentFile().mkdirs()) {
+            Log.d(this.getClass().getSimpleName(), "Failed to create " + stamp.getParentFile());
+            return;
+        }
+        File temp = new File(stamp.getPath() + ".tmp");
+        OutputStream out = null;
         try {
-            OutputStream outStream = new BufferedOutputStream(new FileOutputStream(fileLocation));
-            byte[] buffer = new byte[10240]; // 10KB
-            int length = 0;
-            while ((length = inStream.read(buffer)) >= 0) {
-                outStream.write(buffer, 0, length);
+            out = new FileOutputStream(temp);
+            out.write(("# " + version + "\n").getBytes("UTF-8"));
+            manifest.write(out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(stamp)) {
+                Log.d(this.getClass().getSimpleName(), "Failed to replace " + stamp);
             }
-            outStream.close();
-            inStream.close();
         } catch (IOException e) {
-            throw new IllegalArgumentException("Could not write file to " + fileLocation, e);
+            Log.d(this.getClass().getSimpleName(), "Failed to write " + stamp + ": " + e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void listDirContents(AssetManager manager, String fileToCopy, File fileLocation,
+                                 boolean overwrite, Map<String, File> files) {
+        try {
+            String[] filesInDir = manager.list(fileToCopy);
+            if (filesInDir.length == 0) {
+                // this is a file
+                if (overwrite || !fileLocation.exists()) {
+                    files.put(fileToCopy, fileLocation);
+                }
+            } else {
+                for (String fileInDir : filesInDir) {
+                    listDirContents(manager, fileToCopy + "/" + fileInDir,
+                            new File(fileLocation, fileInDir), overwrite, files);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                    "Could not get assets from directory " + fileToCopy, e);
         }
     }
 }
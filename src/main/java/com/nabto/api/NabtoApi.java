@@ -2,9 +2,14 @@ package com.nabto.api;
 
 import android.util.Log;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Nabto client API.
@@ -30,6 +35,23 @@ import java.util.Collection;
  */
 public class NabtoApi {
     private NabtoAssetManager assetManager;
+    private final NabtoSessionTokenCache tokenCache = new NabtoSessionTokenCache(this);
+    private final NabtoSessionCache sessionCache = new NabtoSessionCache(this, tokenCache);
+    private final NabtoHandleReaper reaper = NabtoHandleReaper.get();
+    private NabtoTunnelMonitor tunnelMonitor;
+    private NabtoTunnelWindowTuner windowTuner;
+    private final NabtoTunnelManager tunnelManager = new NabtoTunnelManager(this);
+    private NabtoDiscoveryService discoveryService;
+    private NabtoConnectionPathCache pathCache;
+    private NabtoCertificateCache certificateCache;
+    private volatile NabtoPortAllocator portAllocator;
+    private volatile boolean lazyResourceInstall;
+    private final Object resourceLock = new Object();
+    private NabtoStatus resourceStatus;
+    private volatile NabtoStartupReport startupReport;
+
+    private static final int TUNNEL_PORT_ATTEMPTS = 3;
+    private static long loadLibraryNanos = -1;
 
     public NabtoApi(NabtoAssetManager assetManager) {
         this.assetManager = assetManager;
@@ -70,20 +92,165 @@ public class NabtoApi {
      *          </ul>
      */
     public NabtoStatus startup() {
+        NabtoStartupReport report = new NabtoStartupReport();
+        startupReport = report;
+        boolean traced = NabtoTrace.begin("Nabto startup");
+        try {
+            NabtoStatus status = startup(report);
+            report.finish(status);
+            return status;
+        } finally {
+            NabtoTrace.end(traced);
+        }
+    }
+
+    private NabtoStatus startup(NabtoStartupReport report) {
+        report.phaseDone(NabtoStartupReport.Phase.LOAD_LIBRARY, loadLibrary());
+        // profiles may have been changed by other means while the API was stopped
+        certificateCache().invalidate();
         NabtoCApiWrapper.nabtoSetStaticResourceDir(assetManager.getNabtoResourceDirectory());
+        if (assetManager instanceof NabtoAndroidAssetManager) {
+            report.phaseDone(NabtoStartupReport.Phase.ASSET_INSTALL,
+                    ((NabtoAndroidAssetManager) assetManager).getInstallNanos());
+        }
         String dir = assetManager.getNabtoHomeDirectory();
-        NabtoStatus status =  NabtoCApiWrapper.nabtoStartup(dir);
-        if (status == NabtoStatus.OK) {
-            status = NabtoCApiWrapper.nabtoInstallDefaultStaticResources(assetManager.getNabtoHomeDirectory());
+        boolean traced = NabtoTrace.begin("Nabto nabtoStartup");
+        long start = System.nanoTime();
+        NabtoStatus status;
+        try {
+            status = NabtoCApiWrapper.nabtoStartup(dir);
+        } finally {
+            NabtoTrace.end(traced);
+        }
+        long coreNanos = System.nanoTime() - start;
+        report.phaseDone(NabtoStartupReport.Phase.CORE_STARTUP, coreNanos);
+        if (status != NabtoStatus.OK) {
+            Log.e(this.getClass().getSimpleName(), "Failed to startup Nabto client API: " + status);
+            return status;
+        }
+        Log.i(this.getClass().getSimpleName(), "Started Nabto Client SDK version " + versionString()
+                + " in " + dir + " (core init " + TimeUnit.NANOSECONDS.toMillis(coreNanos) + " ms)");
+        synchronized (resourceLock) {
+            resourceStatus = null;
+        }
+        if (lazyResourceInstall) {
+            return status;
+        }
+        return installResources();
+    }
+
+    /**
+     * Load the native library by initializing {@link NabtoCApiWrapper}, whose static initializer
+     * calls {@code System.loadLibrary}. The wrapper is generated with the native library, so the
+     * load is timed here.
+     *
+     * @return The time the first call took. It is close to zero if an earlier call into the
+     *         wrapper, e.g. {@link #versionString()}, already loaded the library.
+     */
+    private static synchronized long loadLibrary() {
+        if (loadLibraryNanos < 0) {
+            boolean traced = NabtoTrace.begin("Nabto loadLibrary");
+            long start = System.nanoTime();
+            try {
+                Class.forName(NabtoCApiWrapper.class.getName(), true,
+                        NabtoApi.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                NabtoTrace.end(traced);
+            }
+            loadLibraryNanos = System.nanoTime() - start;
+        }
+        return loadLibraryNanos;
+    }
+
+    /**
+     * The phase timings of the last call to {@link #startup()}.
+     *
+     * @return  The report, or {@code null} if startup has not been called.
+     */
+    public NabtoStartupReport getStartupReport() {
+        return startupReport;
+    }
+
+    /**
+     * Record the startup phases as {@code android.os.Trace} sections, on API level 18 and later.
+     * Enable it before the first call into the API to include loading the native library.
+     *
+     * @param enabled  Whether to trace startup, the default is {@code false}.
+     */
+    public static void setStartupTracing(boolean enabled) {
+        NabtoTrace.setEnabled(enabled);
+    }
+
+    /**
+     * Defer installing the default static resources until they are needed.
+     * <p>
+     *     The resources are the HTML device driver files used by {@link #fetchUrl(String, Session)}
+     *     and {@link #submitPostData(String, byte[], String, Session)}. Apps that only use RPC,
+     *     streams or tunnels never need them. With lazy install, {@link #startup()} only initializes
+     *     the core, and the resources are installed on the first call to one of the functions
+     *     above, or when {@link #installResources()} is called, e.g. from a background thread.
+     *     For the assets of a {@link NabtoAndroidAssetManager}, create it with
+     *     {@link NabtoAndroidAssetManager#NabtoAndroidAssetManager(android.content.Context, boolean)} to defer
+     *     copying them as well.
+     * </p>
+     *
+     * @param lazy  Whether to defer the install, the default is {@code false}.
+     */
+    public void setLazyResourceInstall(boolean lazy) {
+        this.lazyResourceInstall = lazy;
+    }
+
+    /**
+     * Install the default static resources, and the assets of a lazy
+     * {@link NabtoAndroidAssetManager}, unless they have been installed since {@link #startup()}.
+     * Concurrent calls wait for one install.
+     *
+     * @return  The status of the install, {@link NabtoStatus#OK} if the resources are installed.
+     */
+    public NabtoStatus installResources() {
+        synchronized (resourceLock) {
+            if (resourceStatus == NabtoStatus.OK) {
+                return resourceStatus;
+            }
+            String dir = assetManager.getNabtoHomeDirectory();
+            NabtoStartupReport report = startupReport;
+            if (assetManager instanceof NabtoAndroidAssetManager) {
+                NabtoAndroidAssetManager androidAssets = (NabtoAndroidAssetManager) assetManager;
+                androidAssets.installAssets();
+                if (report != null) {
+                    report.phaseDone(NabtoStartupReport.Phase.ASSET_INSTALL,
+                            androidAssets.getInstallNanos());
+                }
+            }
+            boolean traced = NabtoTrace.begin("Nabto installResources");
+            long start = System.nanoTime();
+            NabtoStatus status;
+            try {
+                status = NabtoCApiWrapper.nabtoInstallDefaultStaticResources(dir);
+            } finally {
+                NabtoTrace.end(traced);
+            }
+            long nanos = System.nanoTime() - start;
+            if (report != null) {
+                report.phaseDone(NabtoStartupReport.Phase.INSTALL_RESOURCES, nanos);
+            }
             if (status == NabtoStatus.OK) {
-                Log.i(this.getClass().getSimpleName(), "Started Nabto Client SDK version " + versionString() + " in " + dir);
+                Log.i(this.getClass().getSimpleName(), "Installed resources in " + dir + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms");
             } else {
                 Log.e(this.getClass().getSimpleName(), "Nabto started but resources could not be installed in " + dir);
             }
-        } else {
-            Log.e(this.getClass().getSimpleName(), "Failed to startup Nabto client API: " + status);
+            resourceStatus = status;
+            return status;
+        }
+    }
+
+    private void ensureResourcesInstalled() {
+        if (lazyResourceInstall) {
+            installResources();
         }
-        return status;
     }
 
     /**
@@ -113,6 +280,10 @@ public class NabtoApi {
      * @return {@link NabtoStatus#OK} is the only value returned.
      */
     public NabtoStatus shutdown() {
+        sessionCache.clear();
+        tokenCache.clear();
+        reaper.forgetAll();
+        tunnelManager.clear();
         NabtoStatus status = NabtoCApiWrapper.nabtoShutdown();
         if(status != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(), "Failed to shutdown Nabto client API: " + status);
@@ -158,6 +329,10 @@ public class NabtoApi {
 
     /**
      * Return a collection of local discoverable devices.
+     * <p>
+     *     This runs a discovery and blocks until it completes. To poll for local devices, use
+     *     {@link #getDiscoveryService()} instead.
+     * </p>
      *
      * @return  Collection of local discoverable devices.
      */
@@ -174,6 +349,19 @@ public class NabtoApi {
         return devices;
     }
 
+    /**
+     * Get the service running local device discovery in the background, see
+     * {@link NabtoDiscoveryService}. The service is not running until it is started.
+     *
+     * @return  The discovery service.
+     */
+    public synchronized NabtoDiscoveryService getDiscoveryService() {
+        if (discoveryService == null) {
+            discoveryService = new NabtoDiscoveryService();
+        }
+        return discoveryService;
+    }
+
     /**
      * Try to connect to probe service to test for network connectivity.
      * <p>
@@ -215,22 +403,41 @@ public class NabtoApi {
      *     The {@link #startup()} function must have been called prior to calling this
      *     function.
      * </p>
+     * <p>
+     *     The list is cached until a profile is created or removed through this API, the API is
+     *     started again, or the home directory changes.
+     * </p>
      *
      * @return  Collection of currently known certificates on the system.
      */
     public Collection<String> getCertificates() {
+        NabtoCertificateCache cache = certificateCache();
+        List<String> cached = cache.getCertificates();
+        if (cached != null) {
+            return cached;
+        }
+        int generation = cache.generation();
         ArrayList<String> certificates = new ArrayList<String>();
         String[] res = NabtoCApiWrapper.nabtoGetCertificates();
         if (res != null) {
             for (String s : res) {
                 certificates.add(s);
             }
+            cache.putCertificates(certificates, generation);
         } else {
             Log.d(this.getClass().getSimpleName(), "Failed to get certificates.");
         }
         return certificates;
     }
 
+    private synchronized NabtoCertificateCache certificateCache() {
+        if (certificateCache == null) {
+            certificateCache = new NabtoCertificateCache(
+                    new File(assetManager.getNabtoHomeDirectory()));
+        }
+        return certificateCache;
+    }
+
     /**
      * DEPRECATED - use self signed certs and local pairing instead to not depend on central authority.
      *
@@ -272,7 +479,9 @@ public class NabtoApi {
      *          </ul>
      */
     public NabtoStatus createProfile(String id, String password) {
+        sessionCache.invalidate(id);
         NabtoStatus status = NabtoCApiWrapper.nabtoCreateProfile(id, password);
+        certificateCache().invalidate();
         if(status != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(), "Failed to create profile: " + status);
         }
@@ -299,7 +508,9 @@ public class NabtoApi {
      *          </ul>
      */
     public NabtoStatus removeProfile(String certId) {
+        sessionCache.invalidate(certId);
         NabtoStatus status = NabtoCApiWrapper.nabtoRemoveProfile(certId);
+        certificateCache().invalidate();
         if(status != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(), "Failed to remove profile: " + status);
         }
@@ -334,7 +545,9 @@ public class NabtoApi {
      *          </ul>
      */
     public NabtoStatus createSelfSignedProfile(String commonName, String password) {
+        sessionCache.invalidate(commonName);
         NabtoStatus status = NabtoCApiWrapper.nabtoCreateSelfSignedProfile(commonName, password);
+        certificateCache().invalidate();
         if(status != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(), "Failed to create profile: " + status);
         }
@@ -343,8 +556,13 @@ public class NabtoApi {
 
     /**
      * Retrieve public key fingerprint for certificate with specified id.
+     * <p>
+     *     The fingerprint is appended to {@code fingerprint[0]} as 32 lower case hex digits, or
+     *     stored in it if it is {@code null}. It is left unchanged if the function fails. Use
+     *     {@link #getFingerprint(String)} to get the fingerprint as a {@link NabtoFingerprint}.
+     * </p>
      * @param certId        Certificate ID from which the fingerprint should be retreived
-     * @param fingerprint   The RSA public key fingerprint (buffer of 16 bytes owned by caller)
+     * @param fingerprint   Array whose first element receives the RSA public key fingerprint in hex
      * @return  If the function succeeds, the return value is {@link NabtoStatus#OK}.
      *          If the function fails, the return value is one of the
      *          following values.
@@ -357,14 +575,73 @@ public class NabtoApi {
      *          </ul>
      */
     public NabtoStatus getFingerprint(String certId, String[] fingerprint){
-        byte [] byteFingerprint = new byte[16];
-        NabtoStatus ret = NabtoCApiWrapper.nabtoGetFingerprint(certId, byteFingerprint);
-        for (int i = 0; i<byteFingerprint.length; i++){
-            fingerprint[0] += String.format("%02x",byteFingerprint[i]);
-//            String str = String.format("%02x",byteFingerprint[i]);
-//            fingerprint[0] += i!=0 ? ":" + str : str; // removed ':' insertion here, should be done in application
+        NabtoFingerprint[] result = new NabtoFingerprint[1];
+        NabtoStatus status = fingerprint(certId, result);
+        if (status == NabtoStatus.OK) {
+            // no ':' insertion here, should be done in application
+            String hex = result[0].toHex();
+            fingerprint[0] = fingerprint[0] == null ? hex : fingerprint[0] + hex;
+        }
+        return status;
+    }
+
+    /**
+     * Retrieve public key fingerprint for certificate with specified id.
+     * <p>
+     *     Fingerprints are cached like {@link #getCertificates()}, so repeated lookups do not
+     *     call the core.
+     * </p>
+     *
+     * @param certId  Certificate ID from which the fingerprint should be retrieved.
+     * @return  The fingerprint, or {@code null} if the lookup failed, see
+     *          {@link #getFingerprint(String, String[])} for the reasons.
+     */
+    public NabtoFingerprint getFingerprint(String certId) {
+        NabtoFingerprint[] result = new NabtoFingerprint[1];
+        fingerprint(certId, result);
+        return result[0];
+    }
+
+    /**
+     * Retrieve the public key fingerprints of several certificates.
+     * <p>
+     *     The core looks up one certificate at a time; fingerprints already cached are returned
+     *     without calling it.
+     * </p>
+     *
+     * @param certIds  Certificate IDs, e.g. from {@link #getCertificates()}.
+     * @return  The fingerprint of each certificate, in the order of {@code certIds}. Certificates
+     *          whose lookup failed are left out.
+     */
+    public Map<String, NabtoFingerprint> getFingerprints(Collection<String> certIds) {
+        Map<String, NabtoFingerprint> fingerprints = new LinkedHashMap<String, NabtoFingerprint>();
+        NabtoFingerprint[] result = new NabtoFingerprint[1];
+        for (String certId : certIds) {
+            if (fingerprint(certId, result) == NabtoStatus.OK) {
+                fingerprints.put(certId, result[0]);
+            }
+        }
+        return fingerprints;
+    }
+
+    private NabtoStatus fingerprint(String certId, NabtoFingerprint[] result) {
+        NabtoCertificateCache cache = certificateCache();
+        NabtoFingerprint cached = cache.getFingerprint(certId);
+        if (cached != null) {
+            result[0] = cached;
+            return NabtoStatus.OK;
+        }
+        int generation = cache.generation();
+        byte[] bytes = new byte[NabtoFingerprint.LENGTH];
+        NabtoStatus status = NabtoCApiWrapper.nabtoGetFingerprint(certId, bytes);
+        if (status == NabtoStatus.OK) {
+            result[0] = NabtoFingerprint.wrap(bytes);
+            cache.putFingerprint(certId, result[0], generation);
+        } else {
+            result[0] = null;
+            Log.d(this.getClass().getSimpleName(), "Failed to get fingerprint: " + status);
         }
-        return ret;
+        return status;
     }
 
     /**
@@ -444,6 +721,11 @@ public class NabtoApi {
      *     the {@link #closeSession(Session)} function.
      * </p>
      * <p>
+     *     If session caching is enabled (see {@link #setSessionCacheTimeout(long)}), an open
+     *     session for the same profile and password is reused instead of unlocking the private
+     *     key again.
+     * </p>
+     * <p>
      *     The {@link #startup()} function must have been called prior to calling
      *     this function.
      * </p>
@@ -465,14 +747,80 @@ public class NabtoApi {
      *          </ul>
      */
     public Session openSession(String id, String password) {
-        Session session = NabtoCApiWrapper.nabtoOpenSession(id, password);
+        if (sessionCache.isEnabled()) {
+            Session cached = sessionCache.acquire(id, password);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Session session = coreOpenSession(id, password);
         if(session.getStatus() != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(),
                     "Failed to open session: " + session.getStatus());
+        } else {
+            reaper.register(session, NabtoHandleReaper.Type.SESSION, session.getHandle(),
+                    NabtoSessionData.of(session).lifecycle, this);
+            session = sessionCache.add(id, password, session);
         }
         return session;
     }
 
+    /**
+     * Keep sessions opened with {@link #openSession(String, String)} cached for the specified
+     * time after they are closed.
+     * <p>
+     *     Opening a session unlocks the private key of the profile, which requires reading and
+     *     decrypting the key files. While a session is cached, the unlocked key stays in memory
+     *     and opening a session for the same profile and password returns the cached session
+     *     immediately. Cached sessions are closed in the core when they have not been used for
+     *     the specified time, when the cache is invalidated, when the profile is created or
+     *     removed, or when they have been cached for the maximum lifetime, see
+     *     {@link #setSessionCacheMaxLifetime(long)}.
+     * </p>
+     * <p>
+     *     The default is 0, which disables caching. Disabling the cache does not close sessions
+     *     already cached, use {@link #invalidateSessionCache()} for that.
+     * </p>
+     *
+     * @param timeoutMillis  Time to keep unused sessions open, 0 to disable caching.
+     */
+    public void setSessionCacheTimeout(long timeoutMillis) {
+        sessionCache.setTimeout(timeoutMillis);
+    }
+
+    /**
+     * Limit how long a session stays cached, however often it is reused.
+     * <p>
+     *     When a cached session reaches the maximum lifetime, later opens unlock the private key
+     *     again. The session is closed in the core as soon as it is not in use. The default is
+     *     one hour. The new lifetime applies to sessions cached from now on.
+     * </p>
+     *
+     * @param maxLifetimeMillis  The maximum time a session is reused from the cache, or 0 for
+     *                           no limit.
+     */
+    public void setSessionCacheMaxLifetime(long maxLifetimeMillis) {
+        sessionCache.setMaxLifetime(maxLifetimeMillis);
+    }
+
+    /**
+     * Close all cached sessions that are not in use. Sessions in use are closed as soon as they
+     * are closed with {@link #closeSession(Session)}.
+     */
+    public void invalidateSessionCache() {
+        sessionCache.invalidateAll();
+    }
+
+    /**
+     * Close the cached session of the specified profile if it is not in use. A session in use is
+     * closed as soon as it is closed with {@link #closeSession(Session)}.
+     *
+     * @param id  The id of the profile.
+     */
+    public void invalidateSessionCache(String id) {
+        sessionCache.invalidate(id);
+    }
+
     /**
      * Starts a new Nabto data retrieval session without using a certificate.
      * <p>
@@ -502,6 +850,9 @@ public class NabtoApi {
         if(session.getStatus() != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(),
                     "Failed to open bare session: " + session.getStatus());
+        } else {
+            reaper.register(session, NabtoHandleReaper.Type.SESSION, session.getHandle(),
+                    NabtoSessionData.of(session).lifecycle, this);
         }
         return session;
     }
@@ -513,7 +864,9 @@ public class NabtoApi {
      *     {@link #openSession(String, String)} or {@link #openSessionBare()}.
      * </p>
      * <p>
-     *     Upon return the session object is no longer valid.
+     *     Upon return the session object is no longer valid. If the session is cached (see
+     *     {@link #setSessionCacheTimeout(long)}), it is kept open in the core until the cache
+     *     timeout expires.
      * </p>
      *
      * @param session        session object
@@ -527,7 +880,15 @@ public class NabtoApi {
      *          </ul>
      */
     public NabtoStatus closeSession(Session session) {
-        NabtoStatus status = NabtoCApiWrapper.nabtoCloseSession(session);
+        if (sessionCache.release(session)) {
+            return NabtoStatus.OK;
+        }
+        if (!NabtoSessionData.of(session).lifecycle.markClosed()) {
+            Log.d(this.getClass().getSimpleName(), "Failed to close session: already closed");
+            return NabtoStatus.INVALID_SESSION;
+        }
+        tokenCache.invalidate(session);
+        NabtoStatus status = coreCloseSession(session);
         if(status != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(), "Failed to close session: " + status);
         }
@@ -760,6 +1121,7 @@ public class NabtoApi {
      *          </ul>
      */
     public UrlResult fetchUrl(String nabtoUrl, Session session) {
+        ensureResourcesInstalled();
         UrlResult result = NabtoCApiWrapper.nabtoFetchUrl(nabtoUrl, session);
         if(result.getStatus() != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(),
@@ -805,6 +1167,7 @@ public class NabtoApi {
      */
     public UrlResult submitPostData(String nabtoUrl, byte[] postData,
                                     String postMimeType, Session session) {
+        ensureResourcesInstalled();
         UrlResult result = NabtoCApiWrapper.nabtoSubmitPostData(nabtoUrl, postData,
                 postMimeType, session);
         if(result.getStatus() != NabtoStatus.OK) {
@@ -817,6 +1180,10 @@ public class NabtoApi {
     /**
      * Reads the session token of the specified session handle. This token is
      * typically supplied in html requests.
+     * <p>
+     *     The token is cached on the session after the first call and dropped when the session
+     *     is closed, see {@link #setSessionTokenMaxAge(long, boolean)} for refreshing it.
+     * </p>
      * @param session        Session handle.
      * @return  If the function succeeds, the return value is the session token.
      *          If the function fails, the return value is an empty string. This can occur if the
@@ -824,12 +1191,48 @@ public class NabtoApi {
      *          error occurred.
      */
     public String getSessionToken(Session session) {
-        String token = NabtoCApiWrapper.nabtoGetSessionToken(session);
-        if(token == null) {
-            Log.d(this.getClass().getSimpleName(), "Failed get session token.");
-            token = "";
-        }
-        return token;
+        return tokenCache.get(session);
+    }
+
+    /**
+     * Set the maximum age of cached session tokens.
+     * <p>
+     *     A cached token older than the maximum age is read from the core again by the next
+     *     {@link #getSessionToken(Session)} call. With background refresh, tokens are instead
+     *     refreshed on a background thread before they reach the maximum age, so
+     *     {@link #getSessionToken(Session)} always returns the cached token without calling the
+     *     core.
+     * </p>
+     * <p>
+     *     The default maximum age is 0, which keeps the token until the session is closed.
+     * </p>
+     *
+     * @param maxAgeMillis       Maximum age of a cached token, 0 for no limit.
+     * @param backgroundRefresh  Whether to refresh tokens in the background.
+     */
+    public void setSessionTokenMaxAge(long maxAgeMillis, boolean backgroundRefresh) {
+        tokenCache.setMaxAge(maxAgeMillis, backgroundRefresh);
+    }
+
+    /**
+     * Record where sessions, streams and tunnels are opened, so that handles which are garbage
+     * collected without being closed can be traced back to the code that opened them. Recording
+     * captures a stack trace for every opened handle and is disabled by default.
+     *
+     * @param enabled  Whether to record allocation sites of handles opened from now on.
+     */
+    public void setHandleLeakTracking(boolean enabled) {
+        reaper.setTrackAllocations(enabled);
+    }
+
+    /**
+     * Get the sessions, streams and tunnels that were garbage collected without being closed.
+     * Such handles are closed in the background when they are collected.
+     *
+     * @return  A report of the leaked handles.
+     */
+    public NabtoLeakReport getHandleLeakReport() {
+        return reaper.report();
     }
 
     /**
@@ -867,6 +1270,10 @@ public class NabtoApi {
         Stream stream = NabtoCApiWrapper.nabtoStreamOpen(nabtoHost, session);
         if(stream.getStatus() != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(), "Failed to open stream: " + stream.getStatus());
+        } else {
+            NabtoStreamData.of(stream).nabtoHost = nabtoHost;
+            reaper.register(stream, NabtoHandleReaper.Type.STREAM, stream.getHandle(),
+                    NabtoStreamData.of(stream).lifecycle, this);
         }
         return stream;
     }
@@ -898,7 +1305,14 @@ public class NabtoApi {
      *          </ul>
      */
     public NabtoStatus streamClose(Stream stream) {
-        NabtoStatus status = NabtoCApiWrapper.nabtoStreamClose(stream);
+        if (NabtoStreamData.of(stream).lifecycle.isClosed()) {
+            Log.d(this.getClass().getSimpleName(), "Failed to close stream: already closed");
+            return NabtoStatus.INVALID_STREAM;
+        }
+        NabtoStatus status = coreStreamClose(stream);
+        if (status != NabtoStatus.DATA_PENDING) {
+            NabtoStreamData.of(stream).lifecycle.markClosed();
+        }
         if(status != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(), "Failed to close stream: " + status);
         }
@@ -1007,7 +1421,9 @@ public class NabtoApi {
      *          {@link NabtoConnectionType#UNKNOWN} is returned.
      */
     public NabtoConnectionType streamConnectionType(Stream stream) {
-        return NabtoCApiWrapper.nabtoStreamConnectionType(stream);
+        NabtoConnectionType type = NabtoCApiWrapper.nabtoStreamConnectionType(stream);
+        getConnectionPathCache().record(NabtoStreamData.of(stream).nabtoHost, type);
+        return type;
     }
 
     /**
@@ -1061,7 +1477,9 @@ public class NabtoApi {
      * <p>
      *     If zero is chosen for localPort, the client chooses a suitable port.
      *     After successful connection use {@link #tunnelInfo(Tunnel)}} to get
-     *     the listening port.
+     *     the listening port. If a port range is configured with
+     *     {@link #setTunnelPortRange(int, int)}, a free port from the range is
+     *     chosen instead and returned by {@link #tunnelLocalPort(Tunnel)}.
      * </p>
      * <p>
      *     An open session handle must have been created prior to calling this function.
@@ -1099,15 +1517,93 @@ public class NabtoApi {
      *          </ul>
      */
     public Tunnel tunnelOpenTcp(int localPort, String nabtoHost, String remoteHost, int remotePort, Session session) {
-        Tunnel tunnel = NabtoCApiWrapper.nabtoTunnelOpenTcp(localPort, nabtoHost, remoteHost,
-                remotePort, session);
+        NabtoPortAllocator allocator = portAllocator;
+        Tunnel tunnel = null;
+        if (localPort == 0 && allocator != null) {
+            for (int attempt = 0; attempt < TUNNEL_PORT_ATTEMPTS; attempt++) {
+                int port = allocator.reserve();
+                if (port == 0) {
+                    Log.d(this.getClass().getSimpleName(),
+                            "Failed to allocate local tunnel port: no free port in range");
+                    break;
+                }
+                tunnel = tunnelOpenTcp(port, allocator, nabtoHost, remoteHost, remotePort, session);
+                if (tunnel.getStatus() == NabtoStatus.OK) {
+                    break;
+                }
+                allocator.release(port);
+                if (tunnel.getStatus() != NabtoStatus.FAILED) {
+                    break;
+                }
+            }
+        }
+        if (tunnel == null) {
+            tunnel = tunnelOpenTcp(localPort, null, nabtoHost, remoteHost, remotePort, session);
+        }
+        return tunnel;
+    }
+
+    /**
+     * Opens a TCP tunnel on a local port reserved with a port allocator, e.g. the port of a lost
+     * tunnel that is being reopened. If the tunnel opens, it holds the reservation until it is
+     * closed; otherwise the caller still holds it.
+     *
+     * @param allocator  The allocator the port is reserved with, or {@code null} if the port is
+     *                   not reserved.
+     */
+    Tunnel tunnelOpenTcp(int localPort, NabtoPortAllocator allocator, String nabtoHost,
+                         String remoteHost, int remotePort, Session session) {
+        Tunnel tunnel = coreTunnelOpenTcp(localPort, nabtoHost, remoteHost, remotePort, session);
         if(tunnel.getStatus() != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(),
                     "Failed to open TCP tunnel: " + tunnel.getStatus());
+            return tunnel;
         }
+        NabtoTunnelData data = NabtoTunnelData.of(tunnel);
+        data.localPort = localPort;
+        data.nabtoHost = nabtoHost;
+        if (allocator != null) {
+            data.lifecycle.holdPort(allocator, localPort);
+        }
+        reaper.register(tunnel, NabtoHandleReaper.Type.TUNNEL, tunnel.getHandle(),
+                data.lifecycle, this);
+        tunnelManager.opened(tunnel);
         return tunnel;
     }
 
+    /**
+     * The local port of a tunnel opened with
+     * {@link #tunnelOpenTcp(int, String, String, int, Session)}.
+     *
+     * @param tunnel  tunnel handle
+     * @return The port given to or allocated for the tunnel, or 0 if the core chose the port; use
+     *         {@link #tunnelInfo(Tunnel)} to get it then.
+     */
+    public int tunnelLocalPort(Tunnel tunnel) {
+        return NabtoTunnelData.of(tunnel).localPort;
+    }
+
+    /**
+     * Opens TCP tunnels to several targets concurrently.
+     * <p>
+     *     Each tunnel is opened as with {@link #tunnelOpenTcp(int, String, String, int, Session)}
+     *     with local port 0. The function returns immediately; use the futures of the returned
+     *     batch to wait for the tunnels to connect. The caller must close the tunnels, e.g. with
+     *     {@link NabtoTunnelBatch#close()}.
+     * </p>
+     *
+     * @param specs    The tunnel targets.
+     * @param session  The session handle returned by a previous call to
+     *                 the  {@link #openSession(String, String)} or
+     *                 {@link #openSessionBare()} function.
+     * @return  The batch of tunnels, in the order of the specs.
+     */
+    public NabtoTunnelBatch tunnelOpenTcpBatch(List<NabtoTunnelSpec> specs, Session session) {
+        NabtoTunnelBatch batch = new NabtoTunnelBatch(this, specs);
+        batch.open(session);
+        return batch;
+    }
+
     /**
      * Closes an open tunnel.
      * <p>
@@ -1129,13 +1625,36 @@ public class NabtoApi {
      *          </ul>
      */
     public NabtoStatus tunnelClose(Tunnel tunnel) {
-        NabtoStatus status = NabtoCApiWrapper.nabtoTunnelClose(tunnel);
+        NabtoHandleLifecycle lifecycle = NabtoTunnelData.of(tunnel).lifecycle;
+        if (!lifecycle.markClosed()) {
+            Log.d(this.getClass().getSimpleName(), "Failed to close tunnel: already closed");
+            return NabtoStatus.INVALID_TUNNEL;
+        }
+        tunnelManager.closed(tunnel);
+        NabtoStatus status = coreTunnelClose(tunnel);
         if(status != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(),  "Failed to close tunnel: " + status);
         }
+        lifecycle.releasePort();
         return status;
     }
 
+    /**
+     * Set the range of local ports for tunnels opened with local port 0.
+     * <p>
+     *     {@link #tunnelOpenTcp(int, String, String, int, Session)} then picks a port from the
+     *     range that is neither in use nor being opened by another tunnel, and returns it from
+     *     {@link #tunnelLocalPort(Tunnel)} without a call to {@link #tunnelInfo(Tunnel)}. If the
+     *     range is exhausted, the core chooses the port.
+     * </p>
+     *
+     * @param minPort  The first port of the range, or 0 to let the core choose ports.
+     * @param maxPort  The last port of the range, or 0 to let the core choose ports.
+     */
+    public void setTunnelPortRange(int minPort, int maxPort) {
+        portAllocator = minPort == 0 && maxPort == 0 ? null : new NabtoPortAllocator(minPort, maxPort);
+    }
+
     /**
      * Configure recv window size for streams created by the specified
      * tunnel. This feature is useful if tunnels in a client have different
@@ -1150,6 +1669,9 @@ public class NabtoApi {
         NabtoStatus status = NabtoCApiWrapper.nabtoTunnelSetRecvWindowSize(recvWindowSize, tunnel);
         if(status != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(),  "Failed to set receive window size: " + status);
+        } else {
+            NabtoTunnelData.of(tunnel).recvWindowSize = recvWindowSize;
+            tunnelManager.windowChanged(tunnel);
         }
         return status;
     }
@@ -1167,6 +1689,9 @@ public class NabtoApi {
         NabtoStatus status = NabtoCApiWrapper.nabtoTunnelSetSendWindowSize(sendWindowSize, tunnel);
         if(status != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(),  "Failed to set send window size: " + status);
+        } else {
+            NabtoTunnelData.of(tunnel).sendWindowSize = sendWindowSize;
+            tunnelManager.windowChanged(tunnel);
         }
         return status;
     }
@@ -1198,10 +1723,13 @@ public class NabtoApi {
      *          </ul>
      */
     public TunnelInfoResult tunnelInfo(Tunnel tunnel) {
-        TunnelInfoResult info = NabtoCApiWrapper.nabtoTunnelInfo(tunnel);
+        TunnelInfoResult info = coreTunnelInfo(tunnel);
         if(info.getStatus() != NabtoStatus.OK) {
             Log.d(this.getClass().getSimpleName(),
                     "Failed to get tunnel info: " + info.getStatus());
+        } else {
+            String nabtoHost = NabtoTunnelData.of(tunnel).nabtoHost;
+            getConnectionPathCache().record(nabtoHost, info.getTunnelState());
         }
         return info;
     }
@@ -1213,6 +1741,11 @@ public class NabtoApi {
      *     {@link #tunnelOpenTcp(int, String, String, int, Session)}.
      * </p>
      * <p>
+     *     This call blocks the calling thread while polling the tunnel. To be notified without
+     *     blocking, use {@link NabtoTunnelMonitor#awaitConnection(Tunnel)} or a
+     *     {@link TunnelStateListener} on the monitor returned by {@link #getTunnelMonitor()}.
+     * </p>
+     * <p>
      *     On success, ({@link TunnelInfoResult#getStatus()} returns {@link NabtoStatus#OK}),
      *     {@link TunnelInfoResult#getTunnelState()} returns the tunnel state and
      *     {@link TunnelInfoResult#getPort()}} returns the listening port. If the function fails
@@ -1243,5 +1776,171 @@ public class NabtoApi {
         return info;
     }
 
+    /**
+     * Get the monitor delivering state transitions of tunnels opened with this API.
+     * <p>
+     *     All tunnels watched by the monitor are polled by one shared background task, see
+     *     {@link NabtoTunnelMonitor}.
+     * </p>
+     *
+     * @return  The tunnel monitor.
+     */
+    public synchronized NabtoTunnelMonitor getTunnelMonitor() {
+        if (tunnelMonitor == null) {
+            tunnelMonitor = new NabtoTunnelMonitor(this, getConnectionPathCache());
+        }
+        return tunnelMonitor;
+    }
+
+    /**
+     * Get the tuner adjusting the window sizes of tunnels opened with this API to their
+     * connection type and throughput. Tuning is enabled per tunnel, see
+     * {@link NabtoTunnelWindowTuner#enable(Tunnel)}.
+     *
+     * @return  The tunnel window tuner.
+     */
+    public synchronized NabtoTunnelWindowTuner getTunnelWindowTuner() {
+        if (windowTuner == null) {
+            windowTuner = new NabtoTunnelWindowTuner(this);
+        }
+        return windowTuner;
+    }
+
+    /**
+     * Report traffic carried by a tunnel.
+     * <p>
+     *     The core does not count the bytes passing through the local TCP port of a tunnel, so
+     *     the application reports what it reads from and writes to the port. Reported traffic is
+     *     used by {@link NabtoTunnelWindowTuner} and {@link #tunnelMetrics(Tunnel)}, and marks
+     *     the tunnel as active for the {@link NabtoTunnelManager}.
+     * </p>
+     *
+     * @param tunnel         The tunnel.
+     * @param bytesReceived  Bytes read from the local port since the last report.
+     * @param bytesSent      Bytes written to the local port since the last report.
+     */
+    public void tunnelRecordTraffic(Tunnel tunnel, long bytesReceived, long bytesSent) {
+        NabtoTunnelData data = NabtoTunnelData.of(tunnel);
+        data.bytesReceived.addAndGet(bytesReceived);
+        data.bytesSent.addAndGet(bytesSent);
+        data.lastActivityNanos = System.nanoTime();
+    }
+
+    /**
+     * Get the cache of the last connection type to each device, stored in the Nabto home
+     * directory. See {@link NabtoConnectionPathCache}.
+     *
+     * @return  The connection path cache.
+     */
+    public synchronized NabtoConnectionPathCache getConnectionPathCache() {
+        if (pathCache == null) {
+            pathCache = new NabtoConnectionPathCache(new File(assetManager.getNabtoHomeDirectory(),
+                    NabtoConnectionPathCache.FILE_NAME));
+        }
+        return pathCache;
+    }
+
+    /**
+     * Connect to the devices most likely to be fast, ahead of their first use.
+     * <p>
+     *     The known devices of the {@link #getConnectionPathCache() connection path cache} last
+     *     reached locally or peer-to-peer are connected in the background, most recently seen
+     *     first, by opening and closing a stream. The core keeps the connection of the session to
+     *     each device for a while, so the first request to it does not pay for the connection.
+     * </p>
+     *
+     * @param session     The session to connect in.
+     * @param maxDevices  The maximum number of devices to connect to.
+     */
+    public void warmUpConnections(final Session session, int maxDevices) {
+        NabtoConnectionPathCache cache = getConnectionPathCache();
+        int started = 0;
+        for (final String device : cache.knownDevices()) {
+            if (started == maxDevices
+                    || NabtoConnectionPathCache.rank(cache.getHint(device)) < 2) {
+                break;
+            }
+            started++;
+            NabtoExecutors.blocking().execute(new Runnable() {
+                @Override
+                public void run() {
+                    Stream stream = streamOpen(device, session);
+                    if (stream.getStatus() == NabtoStatus.OK) {
+                        streamConnectionType(stream);
+                        streamClose(stream);
+                    }
+                }
+            });
+        }
+    }
 
+    /**
+     * Get the manager tracking the open tunnels of this API, which can close idle tunnels and
+     * bound the combined window sizes of open tunnels. See {@link NabtoTunnelManager}.
+     *
+     * @return  The tunnel manager.
+     */
+    public NabtoTunnelManager getTunnelManager() {
+        return tunnelManager;
+    }
+
+    /**
+     * Get a snapshot of the counters of a tunnel: reported traffic, connect time, time spent in
+     * each state and recent errors. See {@link NabtoTunnelMetrics}.
+     * <p>
+     *     The core does not expose round trip times of tunnels, so they are not included.
+     * </p>
+     *
+     * @param tunnel  The tunnel.
+     * @return  The metrics.
+     */
+    public NabtoTunnelMetrics tunnelMetrics(Tunnel tunnel) {
+        NabtoTunnelData data = NabtoTunnelData.of(tunnel);
+        return data.stats.snapshot(tunnel, data.bytesReceived.get(), data.bytesSent.get(),
+                System.nanoTime());
+    }
+
+    // The core calls below are where the handle bookkeeping of the wrapper meets the core. They
+    // are package-private so tests can run the bookkeeping against a fake core.
+
+    Tunnel coreTunnelOpenTcp(int localPort, String nabtoHost, String remoteHost, int remotePort,
+                             Session session) {
+        return NabtoCApiWrapper.nabtoTunnelOpenTcp(localPort, nabtoHost, remoteHost, remotePort,
+                session);
+    }
+
+    NabtoStatus coreTunnelClose(Tunnel tunnel) {
+        return NabtoCApiWrapper.nabtoTunnelClose(tunnel);
+    }
+
+    TunnelInfoResult coreTunnelInfo(Tunnel tunnel) {
+        return NabtoCApiWrapper.nabtoTunnelInfo(tunnel);
+    }
+
+    NabtoStatus coreStreamClose(Stream stream) {
+        return NabtoCApiWrapper.nabtoStreamClose(stream);
+    }
+
+    Session coreOpenSession(String id, String password) {
+        return NabtoCApiWrapper.nabtoOpenSession(id, password);
+    }
+
+    NabtoStatus coreCloseSession(Session session) {
+        return NabtoCApiWrapper.nabtoCloseSession(session);
+    }
+
+    String coreGetSessionToken(Session session) {
+        return NabtoCApiWrapper.nabtoGetSessionToken(session);
+    }
+
+    /**
+     * Close the native handle of a session whose wrapper was garbage collected without being
+     * closed. A collected holder of a cached session only releases its reference.
+     */
+    NabtoStatus closeCollectedSession(Object nativeHandle) {
+        if (sessionCache.releaseCollected(nativeHandle)) {
+            return NabtoStatus.OK;
+        }
+        return coreCloseSession(new Session(nativeHandle, NabtoStatus.OK.toInteger()));
+    }
 }
@@ -0,0 +1,212 @@
+package com.nabto.api;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Copies assets to files.
+ * <p>
+ *     Assets stored uncompressed in the APK are copied with {@link FileChannel#transferTo}
+ *     straight from the APK file; compressed assets are streamed through pooled 64 KB buffers.
+ *     Each file is written to a temporary file that is renamed into place when complete, so an
+ *     interrupted install never leaves a truncated file behind. Several files are copied in
+ *     parallel on the calling thread and a few {@link NabtoExecutors#blocking()} threads.
+ * </p>
+ */
+class NabtoAssetCopier {
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int MAX_THREADS = 3;
+
+    private static final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+    private final AssetManager manager;
+
+    NabtoAssetCopier(AssetManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Copy assets to files in parallel.
+     *
+     * @param files  The target file of each asset path.
+     * @throws IllegalArgumentException if a file could not be written.
+     */
+    void copyAll(Map<String, File> files) {
+        final Queue<Map.Entry<String, File>> pending =
+                new ConcurrentLinkedQueue<Map.Entry<String, File>>(files.entrySet());
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                Map.Entry<String, File> file;
+                while ((file = pending.poll()) != null) {
+                    try {
+                        copy(file.getKey(), file.getValue());
+                    } catch (IOException e) {
+                        pending.clear();
+                        throw new IllegalArgumentException("Could not write file to "
+                                + file.getValue(), e);
+                    }
+                }
+            }
+        };
+        List<Future<?>> helpers = new ArrayList<Future<?>>();
+        for (int i = 1; i < Math.min(MAX_THREADS, files.size()); i++) {
+            helpers.add(NabtoExecutors.blocking().submit(worker));
+        }
+        RuntimeException failure = null;
+        try {
+            worker.run();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        boolean interrupted = false;
+        for (Future<?> helper : helpers) {
+            // wait for all files to be in place, even if interrupted
+            while (true) {
+                try {
+                    helper.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException
+                                ? (RuntimeException) e.getCause()
+                                : new IllegalArgumentException("Could not copy assets", e);
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Copy an asset to a file, replacing the file atomically.
+     *
+     * @return {@code false} if the asset does not exist.
+     */
+    boolean copy(String asset, File target) throws IOException {
+        File directory = target.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create directory: " + directory.getPath());
+        }
+        Log.d(this.getClass().getSimpleName(), "Writing asset file: " + asset + " to "
+                + target.getAbsolutePath());
+        File temp = new File(target.getPath() + ".tmp");
+        boolean copied = false;
+        try {
+            copied = transfer(asset, temp) || stream(asset, temp);
+            if (copied && !temp.renameTo(target)) {
+                copied = false;
+                throw new IOException("Could not rename " + temp + " to " + target);
+            }
+        } finally {
+            if (!copied && temp.exists() && !temp.delete()) {
+                Log.d(this.getClass().getSimpleName(), "Failed to delete " + temp);
+            }
+        }
+        if (!copied) {
+            Log.w(this.getClass().getSimpleName(), "Could not read asset file: " + asset);
+        }
+        return copied;
+    }
+
+    /**
+     * Copy an uncompressed asset with a channel transfer from the APK file.
+     *
+     * @return {@code false} if the asset cannot be opened as a file descriptor.
+     */
+    private boolean transfer(String asset, File temp) throws IOException {
+        AssetFileDescriptor descriptor;
+        try {
+            descriptor = manager.openFd(asset);
+        } catch (FileNotFoundException e) {
+            // compressed or missing
+            return false;
+        }
+        try {
+            long length = descriptor.getLength();
+            if (length < 0) {
+                return false;
+            }
+            // the stream does not own the descriptor and is deliberately not closed, closing the
+            // asset file descriptor closes the file
+            FileChannel in = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                FileChannel channel = out.getChannel();
+                long start = descriptor.getStartOffset();
+                long done = 0;
+                while (done < length) {
+                    long count = in.transferTo(start + done, length - done, channel);
+                    if (count <= 0) {
+                        throw new IOException("Unexpected end of asset " + asset);
+                    }
+                    done += count;
+                }
+            } finally {
+                out.close();
+            }
+            return true;
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    /**
+     * Copy an asset through a pooled buffer.
+     *
+     * @return {@code false} if the asset does not exist.
+     */
+    private boolean stream(String asset, File temp) throws IOException {
+        InputStream in;
+        try {
+            in = manager.open(asset, AssetManager.ACCESS_STREAMING);
+        } catch (IOException e) {
+            // it is ok to miss a file in the app bundle (asset manager used with different file
+            // configurations), just don't install it in that case
+            return false;
+        }
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                int length;
+                while ((length = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, length);
+                }
+            } finally {
+                out.close();
+            }
+            return true;
+        } finally {
+            in.close();
+            buffers.offer(buffer);
+        }
+    }
+}
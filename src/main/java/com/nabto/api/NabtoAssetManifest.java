@@ -0,0 +1,129 @@
+package com.nabto.api;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The list of bundled asset files with their sizes and hashes.
+ * <p>
+ *     The manifest is generated at build time by the {@code generateNabtoAssetManifest} Gradle
+ *     task and bundled as the asset {@link #ASSET_NAME}. Each line holds the hash, the size and
+ *     the path of a file relative to the asset directory, separated by tabs. A copy of the
+ *     manifest is stored with the installed files, so the next install only copies the files
+ *     that changed.
+ * </p>
+ */
+class NabtoAssetManifest {
+    static final String ASSET_NAME = "nabto_share.manifest";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static class Entry {
+        final String path;
+        final long size;
+        final String hash;
+
+        Entry(String path, long size, String hash) {
+            this.path = path;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+
+    NabtoAssetManifest(Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    static NabtoAssetManifest empty() {
+        return new NabtoAssetManifest(Collections.<String, Entry>emptyMap());
+    }
+
+    /**
+     * Read a manifest. Lines that are empty, start with '#' or cannot be parsed are skipped.
+     */
+    static NabtoAssetManifest read(InputStream in) throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            String[] fields = line.split("\t", 3);
+            if (fields.length != 3) {
+                continue;
+            }
+            try {
+                entries.put(fields[2], new Entry(fields[2], Long.parseLong(fields[1]), fields[0]));
+            } catch (NumberFormatException e) {
+                // skip the line
+            }
+        }
+        return new NabtoAssetManifest(entries);
+    }
+
+    void write(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, UTF_8);
+        for (Entry entry : entries.values()) {
+            writer.write(entry.hash + "\t" + entry.size + "\t" + entry.path + "\n");
+        }
+        writer.flush();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * The files to copy to bring an install described by an older manifest up to date: files
+     * that are new, whose hash changed, or that are missing or have the wrong size in the
+     * install directory.
+     *
+     * @param installed  The manifest of the current install.
+     * @param directory  The install directory.
+     */
+    List<Entry> changedSince(NabtoAssetManifest installed, File directory) {
+        List<Entry> changed = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            Entry old = installed.entries.get(entry.path);
+            File file = new File(directory, entry.path);
+            if (old == null || !old.hash.equals(entry.hash) || file.length() != entry.size
+                    || !file.isFile()) {
+                changed.add(entry);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * The files of an older manifest that are no longer bundled.
+     */
+    List<Entry> removedSince(NabtoAssetManifest installed) {
+        List<Entry> removed = new ArrayList<Entry>();
+        for (Entry entry : installed.entries.values()) {
+            if (!entries.containsKey(entry.path)) {
+                removed.add(entry);
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,46 @@
+package com.nabto.api;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff.
+ * <p>
+ *     The delay before attempt n is drawn uniformly from
+ *     {@code [0, min(maxDelayMillis, baseDelayMillis * 2^(n-1))]} ("full jitter"), so that
+ *     clients failing at the same time spread out their retries instead of retrying in lockstep.
+ * </p>
+ */
+class NabtoBackoff {
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random = new Random();
+
+    NabtoBackoff(long baseDelayMillis, long maxDelayMillis) {
+        if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Invalid backoff range: " + baseDelayMillis
+                    + " - " + maxDelayMillis);
+        }
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Returns the delay before the given attempt.
+     *
+     * @param attempt  The number of attempts made so far, starting at 1.
+     * @return  The jittered delay in milliseconds.
+     */
+    long delayMillis(int attempt) {
+        long ceiling = baseDelayMillis;
+        for (int i = 1; i < attempt && ceiling < maxDelayMillis; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, maxDelayMillis);
+        if (ceiling <= 0) {
+            return 0;
+        }
+        synchronized (random) {
+            return (long) (random.nextDouble() * (ceiling + 1));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.nabto.api;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The certificates of the profile store and their fingerprints, kept in memory.
+ * <p>
+ *     {@link NabtoApi} invalidates the cache when it creates or removes a profile, and on every
+ *     {@link NabtoApi#startup()}, e.g. when a {@link NabtoClient} is resumed. The layout of the
+ *     profile store below the home directory is internal to the core, so profiles changed by
+ *     other means while the API runs are only detected on a best effort basis: the cache is
+ *     also cleared when the modification time of the home directory changes, which is checked
+ *     on each read.
+ * </p>
+ */
+class NabtoCertificateCache {
+    private final File homeDirectory;
+    private final Map<String, NabtoFingerprint> fingerprints =
+            new HashMap<String, NabtoFingerprint>();
+    private List<String> certificates;
+    private long homeModified = -1;
+    private int generation;
+
+    NabtoCertificateCache(File homeDirectory) {
+        this.homeDirectory = homeDirectory;
+    }
+
+    /**
+     * @return A copy of the cached certificates, or {@code null} if they must be read from the
+     *         core.
+     */
+    synchronized List<String> getCertificates() {
+        validate();
+        return certificates == null ? null : new ArrayList<String>(certificates);
+    }
+
+    /**
+     * @return The generation to pass to the put methods, read before asking the core, so a
+     *         result read while the cache is invalidated is not stored.
+     */
+    synchronized int generation() {
+        return generation;
+    }
+
+    synchronized void putCertificates(Collection<String> certificates, int generation) {
+        if (generation == this.generation) {
+            this.certificates = new ArrayList<String>(certificates);
+        }
+    }
+
+    /**
+     * @return The cached fingerprint, or {@code null} if it must be read from the core.
+     */
+    synchronized NabtoFingerprint getFingerprint(String certId) {
+        validate();
+        return fingerprints.get(certId);
+    }
+
+    synchronized void putFingerprint(String certId, NabtoFingerprint fingerprint, int generation) {
+        if (generation == this.generation) {
+            fingerprints.put(certId, fingerprint);
+        }
+    }
+
+    synchronized void invalidate() {
+        generation++;
+        certificates = null;
+        fingerprints.clear();
+    }
+
+    /**
+     * Clear the cache if the home directory changed since the last check. The modification time
+     * is taken before the core is asked, so a change made while the core reads the store is
+     * seen on the next read.
+     */
+    private void validate() {
+        long home = homeDirectory.lastModified();
+        if (home != homeModified) {
+            homeModified = home;
+            invalidate();
+        }
+    }
+}
@@ -4,6 +4,11 @@ import android.content.Context;
 import android.util.Log;
 
 import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * The NabtoClient is a simple way to communicate with a Nabto device.
@@ -26,12 +31,14 @@ import java.util.Collection;
 public class NabtoClient {
     private NabtoAndroidAssetManager assetManager;
     private NabtoApi nabtoApi;
-    private Session session;
-    private boolean initialized;
+    private NabtoRetrier retrier;
+    private volatile Session session;
+    private volatile boolean initialized;
     private String email;
     private String password;
-
-    private static int PROBE_NETWORK_TIMEOUT_MILLIS = 2000;
+    private volatile boolean speculativeProbe = true;
+    private volatile NabtoInitReport initReport;
+    private final NabtoNetworkProbe networkProbe;
 
     /**
      * Create a new Nabto client.
@@ -39,12 +46,54 @@ public class NabtoClient {
      * @param context App context.
      */
     public NabtoClient(Context context) {
-        this.assetManager = new NabtoAndroidAssetManager(context);
+        this(context, false);
+    }
+
+    /**
+     * Create a new Nabto client, optionally deferring the install of the bundled resources
+     * until they are first needed, see {@link NabtoApi#setLazyResourceInstall(boolean)}.
+     *
+     * @param context App context.
+     * @param lazyResourceInstall Whether to defer installing the resources.
+     */
+    public NabtoClient(Context context, boolean lazyResourceInstall) {
+        this.assetManager = new NabtoAndroidAssetManager(context, lazyResourceInstall);
         this.nabtoApi = new NabtoApi(assetManager);
+        this.nabtoApi.setLazyResourceInstall(lazyResourceInstall);
+        this.retrier = new NabtoRetrier(nabtoApi);
+        this.networkProbe = new NabtoNetworkProbe(nabtoApi, retrier, context);
+    }
+
+    /**
+     * Set the policy deciding if and when failed calls are retried. The policy is used by all
+     * calls made through this client.
+     * <p>
+     *     The default policy is a {@link NabtoDefaultRetryPolicy}, which starts the Nabto client
+     *     API and retries once if a call fails with {@link NabtoStatus#API_NOT_INITIALIZED}.
+     * </p>
+     *
+     * @param retryPolicy  The retry policy to use.
+     */
+    public void setRetryPolicy(NabtoRetryPolicy retryPolicy) {
+        retrier.setPolicy(retryPolicy);
+    }
+
+    /**
+     * Get the retry counters of this client.
+     *
+     * @return The retry metrics.
+     */
+    public NabtoRetryMetrics getRetryMetrics() {
+        return retrier.getMetrics();
     }
 
     /**
      * Initialize the Nabto application using a specified profile.
+     * <p>
+     *     If the profile does not exist or cannot be unlocked, it is created and a session is
+     *     opened with the new profile. Creating a profile requires network access, so the network
+     *     is probed while the first session is opened (see {@link #setSpeculativeProbe(boolean)}).
+     * </p>
      *
      * @param email      The id of an existing certificate.
      * @param password   Password for encrypted private key file.
@@ -64,18 +113,150 @@ public class NabtoClient {
      *          </ul>
      */
     public NabtoStatus init(String email, String password) {
+        return init(email, password, 0);
+    }
+
+    /**
+     * Initialize the Nabto application using a specified profile, giving up after the specified
+     * time.
+     * <p>
+     *     See {@link #init(String, String)}. If initialization has not completed within
+     *     {@code deadlineMillis}, {@link NabtoStatus#ABORTED} is returned. Calls into the core
+     *     still running at the deadline are left to complete in the background and their results
+     *     are discarded.
+     * </p>
+     * <p>
+     *     The timings of the initialization are available from {@link #getInitReport()}.
+     * </p>
+     *
+     * @param email           The id of an existing certificate.
+     * @param password        Password for encrypted private key file.
+     * @param deadlineMillis  Maximum time to spend, 0 to wait until initialization completes.
+     * @return  The status as described for {@link #init(String, String)}, or
+     *          {@link NabtoStatus#ABORTED} if the deadline was exceeded or the calling thread was
+     *          interrupted.
+     */
+    public NabtoStatus init(String email, String password, long deadlineMillis) {
         this.email = email;
         this.password = password;
 
-        session = openSession(email, password);
-        NabtoStatus status = session.getStatus();
+        NabtoInitReport report = new NabtoInitReport();
+        initReport = report;
+        long deadlineNanos = deadlineMillis > 0
+                ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis)
+                : 0;
+        NabtoStatus status;
+        boolean deadlineExceeded = false;
+        try {
+            status = bootstrap(email, password, deadlineNanos, report);
+        } catch (TimeoutException e) {
+            status = NabtoStatus.ABORTED;
+            deadlineExceeded = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = NabtoStatus.ABORTED;
+        }
+        report.finish(status, deadlineExceeded);
+        Log.d(this.getClass().getSimpleName(), "Init finished: " + report);
+        return status;
+    }
+
+    /**
+     * Initialize the Nabto application on a background thread. See
+     * {@link #init(String, String, long)}.
+     *
+     * @param email           The id of an existing certificate.
+     * @param password        Password for encrypted private key file.
+     * @param deadlineMillis  Maximum time to spend, 0 to wait until initialization completes.
+     * @return  A future completing with the status of the initialization.
+     */
+    public Future<NabtoStatus> initAsync(final String email, final String password,
+                                         final long deadlineMillis) {
+        return NabtoExecutors.blocking().submit(new Callable<NabtoStatus>() {
+            @Override
+            public NabtoStatus call() {
+                return init(email, password, deadlineMillis);
+            }
+        });
+    }
+
+    /**
+     * Get the timings of the most recent initialization.
+     *
+     * @return  The report, or {@code null} if {@link #init(String, String)} has not been called.
+     */
+    public NabtoInitReport getInitReport() {
+        return initReport;
+    }
+
+    /**
+     * Get the phase timings of the most recent startup of the Nabto client API, which
+     * {@link #init(String, String)} and retried calls start when needed.
+     *
+     * @return  The report, or {@code null} if the API has not been started.
+     */
+    public NabtoStartupReport getStartupReport() {
+        return nabtoApi.getStartupReport();
+    }
+
+    /**
+     * Set whether init probes the network while opening the first session. The probe result is
+     * only needed if the profile must be created, but running it speculatively removes the probe
+     * from the critical path on first run. Enabled by default.
+     *
+     * @param speculativeProbe  Whether to probe the network speculatively.
+     */
+    public void setSpeculativeProbe(boolean speculativeProbe) {
+        this.speculativeProbe = speculativeProbe;
+    }
+
+    private NabtoStatus bootstrap(final String email, final String password, long deadlineNanos,
+                                  NabtoInitReport report)
+            throws TimeoutException, InterruptedException {
+        Callable<Session> open = new Callable<Session>() {
+            @Override
+            public Session call() {
+                return openSession(email, password);
+            }
+        };
+        Callable<NabtoStatus> probe = new Callable<NabtoStatus>() {
+            @Override
+            public NabtoStatus call() {
+                return probeNetwork();
+            }
+        };
+
+        Future<Session> firstOpen = submitStep(NabtoInitReport.Step.OPEN_SESSION, open, report);
+        Future<NabtoStatus> probeResult = null;
+        if (speculativeProbe) {
+            probeResult = submitStep(NabtoInitReport.Step.PROBE_NETWORK, probe, report);
+        }
+
+        Session opened = awaitSession(firstOpen, deadlineNanos);
+        NabtoStatus status = opened.getStatus();
         if(status == NabtoStatus.UNLOCK_PK_FAILED || status == NabtoStatus.OPEN_CERT_OR_PK_FAILED) {
-            status = createProfile(email, password);
-            if(status != NabtoStatus.OK)
+            if (probeResult == null) {
+                probeResult = submitStep(NabtoInitReport.Step.PROBE_NETWORK, probe, report);
+            }
+            status = await(probeResult, deadlineNanos);
+            if(status != NabtoStatus.OK) {
+                return status;
+            }
+            status = await(submitStep(NabtoInitReport.Step.CREATE_PROFILE,
+                    new Callable<NabtoStatus>() {
+                        @Override
+                        public NabtoStatus call() {
+                            return createProfile(email, password);
+                        }
+                    }, report), deadlineNanos);
+            if(status != NabtoStatus.OK) {
                 return status;
+            }
+            opened = awaitSession(submitStep(NabtoInitReport.Step.REOPEN_SESSION, open, report),
+                    deadlineNanos);
+            status = opened.getStatus();
         }
-        session = openSession(email, password);
-        status = session.getStatus();
+        session = opened;
         if(status != NabtoStatus.OK) {
             return status;
         }
@@ -84,9 +265,66 @@ public class NabtoClient {
         return status;
     }
 
+    private <T> Future<T> submitStep(final NabtoInitReport.Step step, final Callable<T> callable,
+                                     final NabtoInitReport report) {
+        return NabtoExecutors.blocking().submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                T result = callable.call();
+                report.stepDone(step, System.nanoTime() - start);
+                return result;
+            }
+        });
+    }
+
+    private <T> T await(Future<T> future, long deadlineNanos)
+            throws TimeoutException, InterruptedException {
+        try {
+            if (deadlineNanos == 0) {
+                return future.get();
+            }
+            return future.get(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private Session awaitSession(final Future<Session> future, long deadlineNanos)
+            throws TimeoutException, InterruptedException {
+        try {
+            return await(future, deadlineNanos);
+        } catch (TimeoutException e) {
+            // close the session if the open completes after we gave up on it
+            NabtoExecutors.blocking().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Session late = future.get();
+                        if (late.getStatus() == NabtoStatus.OK) {
+                            nabtoApi.closeSession(late);
+                        }
+                    } catch (Exception ignored) {
+                        // nothing to clean up
+                    }
+                }
+            });
+            throw e;
+        }
+    }
+
     public void pause() {
         nabtoApi.closeSession(session);
         nabtoApi.shutdown();
+        retrier.stopped();
+        networkProbe.stopWatching();
     }
 
     public boolean resume() {
@@ -137,7 +375,7 @@ public class NabtoClient {
      *          </ul>
      */
     private NabtoStatus startup() {
-        return nabtoApi.startup();
+        return retrier.startup();
     }
 
     /**
@@ -146,7 +384,7 @@ public class NabtoClient {
      * @return  Collection of known prefixes in the location specified by prefixes.
      */
     public Collection<String> getProtocolPrefixes() {
-        startup();
+        retrier.ensureStarted();
         return nabtoApi.getProtocolPrefixes();
     }
 
@@ -156,14 +394,37 @@ public class NabtoClient {
      * @return  Collection of local discoverable devices.
      */
     public Collection<String> getLocalDevices() {
-        startup();
+        retrier.ensureStarted();
         return nabtoApi.getLocalDevices();
     }
 
+    /**
+     * Get the service running local device discovery in the background. Unlike
+     * {@link #getLocalDevices()}, reading its result neither starts the API nor blocks. The
+     * API must have been started, e.g. by {@link #init(String, String)}, when discovery runs.
+     *
+     * @return  The discovery service, see {@link NabtoDiscoveryService}.
+     */
+    public NabtoDiscoveryService getDiscoveryService() {
+        return nabtoApi.getDiscoveryService();
+    }
+
+    /**
+     * Get the network probe used by {@link #probeNetwork()}, to configure its time to live,
+     * timeout and hosts.
+     *
+     * @return  The network probe, see {@link NabtoNetworkProbe}.
+     */
+    public NabtoNetworkProbe getNetworkProbe() {
+        return networkProbe;
+    }
+
     /**
      * Try to connect to probe service to test for network connectivity.
      * <p>
-     *     If NULL is specified as host, the portal host name from the configuration is used.
+     *     The portal host name from the configuration is probed, unless other hosts are set with
+     *     {@link NabtoNetworkProbe#setHostnames(String...)}. A successful result is reused until
+     *     its time to live expires or connectivity changes, see {@link #getNetworkProbe()}.
      * </p>
      * <p>
      *     This function can be used to make the underlying platform start the network.
@@ -180,14 +441,7 @@ public class NabtoClient {
      *          </ul>
      */
     public NabtoStatus probeNetwork() {
-        NabtoStatus status = nabtoApi.probeNetwork(PROBE_NETWORK_TIMEOUT_MILLIS, null);
-        if (status == NabtoStatus.API_NOT_INITIALIZED) {
-            status = startup();
-            if(status == NabtoStatus.OK) {
-                status = nabtoApi.probeNetwork(PROBE_NETWORK_TIMEOUT_MILLIS, null);
-            }
-        }
-        return status;
+        return networkProbe.probe();
     }
 
     /**
@@ -196,7 +450,7 @@ public class NabtoClient {
      * @return  Collection of currently known certificates on the system.
      */
     public Collection<String> getCertificates() {
-        startup();
+        retrier.ensureStarted();
         return nabtoApi.getCertificates();
     }
 
@@ -218,6 +472,11 @@ public class NabtoClient {
      *     The given password is used to access the portal for specified user. The
      *     password will also be used for encrypting the private key.
      * </p>
+     * <p>
+     *     The network must have been probed with {@link #probeNetwork()} before calling this
+     *     function, {@link #init(String, String)} runs the probe in parallel with opening the
+     *     first session.
+     * </p>
      *
      * @param email     Email address of user, as registered on portal.
      * @param password  Password for accessing portal for specified user.
@@ -225,7 +484,6 @@ public class NabtoClient {
      *          If the function fails, the return value is one of the
      *          following values.
      *          <ul>
-     *              <li>{@link NabtoStatus#NO_NETWORK}: The host couldn't be reached.</li>
      *              <li>{@link NabtoStatus#ERROR_READING_CONFIG}: The config file wasn't read.</li>
      *              <li>{@link NabtoStatus#UNLOCK_PK_FAILED}: Bad password was specified.</li>
      *              <li>{@link NabtoStatus#CERT_SAVING_FAILURE}: Could not save signed certificate.</li>
@@ -235,18 +493,12 @@ public class NabtoClient {
      *          </ul>
      */
     private NabtoStatus createProfile(String email, String password) {
-        NabtoStatus status = probeNetwork();
-        if(status != NabtoStatus.OK) {
-            return status;
-        }
-        status = nabtoApi.createProfile(email, password);
-        if (status == NabtoStatus.API_NOT_INITIALIZED) {
-            status = startup();
-            if(status == NabtoStatus.OK) {
-                status = nabtoApi.createProfile(email, password);
+        return retrier.call(new NabtoRetrier.StatusCall() {
+            @Override
+            NabtoStatus invoke() {
+                return nabtoApi.createProfile(email, password);
             }
-        }
-        return status;
+        });
     }
 
     /**
@@ -272,14 +524,12 @@ public class NabtoClient {
         if(status != NabtoStatus.OK) {
             return status;
         }
-        status = nabtoApi.signup(email, password);
-        if (status == NabtoStatus.API_NOT_INITIALIZED) {
-            status = startup();
-            if(status == NabtoStatus.OK) {
-                status = nabtoApi.signup(email, password);
+        return retrier.call(new NabtoRetrier.StatusCall() {
+            @Override
+            NabtoStatus invoke() {
+                return nabtoApi.signup(email, password);
             }
-        }
-        return status;
+        });
     }
 
     /**
@@ -302,14 +552,12 @@ public class NabtoClient {
         if(status != NabtoStatus.OK) {
             return status;
         }
-        status = nabtoApi.resetAccountPassword(email);
-        if (status == NabtoStatus.API_NOT_INITIALIZED) {
-            status = startup();
-            if(status == NabtoStatus.OK) {
-                status = nabtoApi.resetAccountPassword(email);
+        return retrier.call(new NabtoRetrier.StatusCall() {
+            @Override
+            NabtoStatus invoke() {
+                return nabtoApi.resetAccountPassword(email);
             }
-        }
-        return status;
+        });
     }
 
     /**
@@ -344,15 +592,12 @@ public class NabtoClient {
      *          </ul>
      */
     private Session openSession(String email, String password) {
-        Session session = nabtoApi.openSession(email, password);
-        if(session.getStatus() == NabtoStatus.API_NOT_INITIALIZED) {
-            NabtoStatus status = startup();
-            if(status != NabtoStatus.OK) {
-                return new Session(null, status.toInteger());
+        return retrier.call(new NabtoRetrier.SessionCall() {
+            @Override
+            Session invoke() {
+                return nabtoApi.openSession(email, password);
             }
-            session = nabtoApi.openSession(email, password);
-        }
-        return session;
+        });
     }
 
     /**
@@ -382,15 +627,12 @@ public class NabtoClient {
      *          </ul>
      */
     public RpcResult rpcSetDefaultInterface(String interfaceDefinition) {
-        RpcResult result = nabtoApi.rpcSetDefaultInterface(interfaceDefinition, session);
-        if(result.getStatus() == NabtoStatus.API_NOT_INITIALIZED) {
-            NabtoStatus status = startup();
-            if(status != NabtoStatus.OK) {
-                return new RpcResult(null, status.toInteger());
+        return retrier.call(new NabtoRetrier.RpcCall() {
+            @Override
+            RpcResult invoke() {
+                return nabtoApi.rpcSetDefaultInterface(interfaceDefinition, session);
             }
-            result = nabtoApi.rpcSetDefaultInterface(interfaceDefinition, session);
-        }
-        return result;
+        });
     }
 
     /**
@@ -418,15 +660,12 @@ public class NabtoClient {
      *          </ul>
      */
     public RpcResult rpcSetInterface(String nabtoHost, String interfaceDefinition) {
-        RpcResult result = nabtoApi.rpcSetInterface(nabtoHost, interfaceDefinition, session);
-        if(result.getStatus() == NabtoStatus.API_NOT_INITIALIZED) {
-            NabtoStatus status = startup();
-            if(status != NabtoStatus.OK) {
-                return new RpcResult(null, status.toInteger());
+        return retrier.call(new NabtoRetrier.RpcCall() {
+            @Override
+            RpcResult invoke() {
+                return nabtoApi.rpcSetInterface(nabtoHost, interfaceDefinition, session);
             }
-            result = nabtoApi.rpcSetInterface(nabtoHost, interfaceDefinition, session);
-        }
-        return result;
+        });
     }
 
     /**
@@ -464,15 +703,12 @@ public class NabtoClient {
      *          </ul>
      */
     public RpcResult rpcInvoke(String nabtoUrl) {
-        RpcResult result = nabtoApi.rpcInvoke(nabtoUrl, session);
-        if(result.getStatus() == NabtoStatus.API_NOT_INITIALIZED) {
-            NabtoStatus status = startup();
-            if(status != NabtoStatus.OK) {
-                return new RpcResult(null, status.toInteger());
+        return retrier.call(new NabtoRetrier.RpcCall() {
+            @Override
+            RpcResult invoke() {
+                return nabtoApi.rpcInvoke(nabtoUrl, session);
             }
-            result = nabtoApi.rpcInvoke(nabtoUrl, session);
-        }
-        return result;
+        });
     }
 
     /**
@@ -497,15 +733,12 @@ public class NabtoClient {
      *          </ul>
      */
     public UrlResult fetchUrl(String nabtoUrl) {
-        UrlResult result = nabtoApi.fetchUrl(nabtoUrl, session);
-        if(result.getStatus() == NabtoStatus.API_NOT_INITIALIZED) {
-            NabtoStatus status = startup();
-            if(status != NabtoStatus.OK) {
-                return new UrlResult(null, null, status.toInteger());
+        return retrier.call(new NabtoRetrier.UrlCall() {
+            @Override
+            UrlResult invoke() {
+                return nabtoApi.fetchUrl(nabtoUrl, session);
             }
-            result = nabtoApi.fetchUrl(nabtoUrl, session);
-        }
-        return result;
+        });
     }
 
     /**
@@ -538,15 +771,12 @@ public class NabtoClient {
      */
     public UrlResult submitPostData(String nabtoUrl, byte[] postData,
                                     String postMimeType) {
-        UrlResult result = nabtoApi.submitPostData(nabtoUrl, postData, postMimeType, session);
-        if(result.getStatus() == NabtoStatus.API_NOT_INITIALIZED) {
-            NabtoStatus status = startup();
-            if(status != NabtoStatus.OK) {
-                return new UrlResult(null, null, status.toInteger());
+        return retrier.call(new NabtoRetrier.UrlCall() {
+            @Override
+            UrlResult invoke() {
+                return nabtoApi.submitPostData(nabtoUrl, postData, postMimeType, session);
             }
-            result = nabtoApi.submitPostData(nabtoUrl, postData, postMimeType, session);
-        }
-        return result;
+        });
     }
 
     /**
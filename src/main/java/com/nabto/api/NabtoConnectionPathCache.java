@@ -0,0 +1,332 @@
+package com.nabto.api;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the last connection type to each device across app starts.
+ * <p>
+ *     Connection types are recorded from {@link NabtoApi#streamConnectionType(Stream)},
+ *     {@link NabtoApi#tunnelInfo(Tunnel)} and the {@link NabtoTunnelMonitor}, and stored in a
+ *     small binary file in the Nabto home directory. The file is memory mapped when it is first
+ *     needed, and written back shortly after changes. The hints are used to try likely fast
+ *     devices first ({@link #orderByHint(Collection)}) and to open connections to them ahead of
+ *     use ({@link NabtoApi#warmUpConnections(Session, int)}).
+ * </p>
+ */
+public class NabtoConnectionPathCache {
+    static final String FILE_NAME = "connection_paths.bin";
+
+    private static final int MAGIC = 0x4e504331; // "NPC1"
+    private static final int MAX_ENTRIES = 512;
+    private static final long SAVE_DELAY_MILLIS = 2000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Entry {
+        final NabtoConnectionType type;
+        final long timeMillis;
+
+        Entry(NabtoConnectionType type, long timeMillis) {
+            this.type = type;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    private final File file;
+    private Map<String, Entry> entries;
+    private ScheduledFuture<?> saveTask;
+    // serializes writes of the file, which run on the blocking pool
+    private final Object writeLock = new Object();
+    // incremented under the cache lock for every snapshot taken by save()
+    private volatile int snapshots;
+
+    NabtoConnectionPathCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * The connection type last seen for a device.
+     *
+     * @param deviceId  The device ID, e.g. "demo.nabto.net".
+     * @return The connection type, or {@code null} if the device is not known.
+     */
+    public synchronized NabtoConnectionType getHint(String deviceId) {
+        Entry entry = entries().get(deviceId);
+        return entry == null ? null : entry.type;
+    }
+
+    /**
+     * The time a connection type was last recorded for a device.
+     *
+     * @param deviceId  The device ID.
+     * @return The time in milliseconds since the epoch, or 0 if the device is not known.
+     */
+    public synchronized long getLastSeenMillis(String deviceId) {
+        Entry entry = entries().get(deviceId);
+        return entry == null ? 0 : entry.timeMillis;
+    }
+
+    /**
+     * Order devices by how fast they are likely to connect: devices last reached locally first,
+     * then peer-to-peer, then through a relay, then unknown devices. Devices with the same hint
+     * are ordered most recently seen first.
+     *
+     * @param deviceIds  The device IDs.
+     * @return A new list with the device IDs in order.
+     */
+    public synchronized List<String> orderByHint(Collection<String> deviceIds) {
+        final Map<String, Entry> known = entries();
+        List<String> ordered = new ArrayList<String>(deviceIds);
+        Collections.sort(ordered, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                Entry ea = known.get(a);
+                Entry eb = known.get(b);
+                int diff = rank(eb) - rank(ea);
+                if (diff != 0) {
+                    return diff;
+                }
+                long ta = ea == null ? 0 : ea.timeMillis;
+                long tb = eb == null ? 0 : eb.timeMillis;
+                return tb > ta ? 1 : tb < ta ? -1 : 0;
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Forget all devices and delete the file.
+     */
+    public synchronized void clear() {
+        entries = new HashMap<String, Entry>();
+        if (saveTask != null) {
+            saveTask.cancel(false);
+            saveTask = null;
+        }
+        synchronized (writeLock) {
+            if (file.exists() && !file.delete()) {
+                Log.d(this.getClass().getSimpleName(), "Failed to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * @return The known device IDs, most likely fast first, see {@link #orderByHint(Collection)}.
+     */
+    synchronized List<String> knownDevices() {
+        return orderByHint(entries().keySet());
+    }
+
+    void record(String deviceId, NabtoConnectionType type) {
+        if (deviceId == null || type == null || type == NabtoConnectionType.UNKNOWN) {
+            return;
+        }
+        synchronized (this) {
+            Map<String, Entry> known = entries();
+            Entry previous = known.get(deviceId);
+            long now = System.currentTimeMillis();
+            // only persist type changes and refreshes older than a minute
+            if (previous != null && previous.type == type
+                    && now - previous.timeMillis < TimeUnit.MINUTES.toMillis(1)) {
+                return;
+            }
+            known.put(deviceId, new Entry(type, now));
+            if (known.size() > MAX_ENTRIES) {
+                evictOldest(known);
+            }
+            if (saveTask == null) {
+                // the scheduler only debounces, the file is written on the blocking pool
+                saveTask = NabtoExecutors.scheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        NabtoExecutors.blocking().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                save();
+                            }
+                        });
+                    }
+                }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    void record(String deviceId, NabtoTunnelState state) {
+        record(deviceId, toConnectionType(state));
+    }
+
+    static NabtoConnectionType toConnectionType(NabtoTunnelState state) {
+        if (state == null) {
+            return null;
+        }
+        switch (state) {
+            case LOCAL:
+                return NabtoConnectionType.LOCAL;
+            case REMOTE_P2P:
+                return NabtoConnectionType.P2P;
+            case REMOTE_RELAY:
+                return NabtoConnectionType.RELAY;
+            case REMOTE_RELAY_MICRO:
+                return NabtoConnectionType.RELAY_MICRO;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Devices ranked by likely connect speed: local 3, peer-to-peer 2, relay 1, unknown 0.
+     */
+    static int rank(NabtoConnectionType type) {
+        if (type == NabtoConnectionType.LOCAL) {
+            return 3;
+        }
+        if (type == NabtoConnectionType.P2P) {
+            return 2;
+        }
+        if (type == NabtoConnectionType.RELAY || type == NabtoConnectionType.RELAY_MICRO) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private static int rank(Entry entry) {
+        return entry == null ? 0 : rank(entry.type);
+    }
+
+    private static void evictOldest(Map<String, Entry> known) {
+        String oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (Map.Entry<String, Entry> entry : known.entrySet()) {
+            if (entry.getValue().timeMillis < oldestTime) {
+                oldest = entry.getKey();
+                oldestTime = entry.getValue().timeMillis;
+            }
+        }
+        known.remove(oldest);
+    }
+
+    private Map<String, Entry> entries() {
+        if (entries == null) {
+            entries = load();
+        }
+        return entries;
+    }
+
+    /**
+     * Layout: magic, entry count, then per entry the UTF-8 device ID prefixed by its length as
+     * an unsigned short, the connection type ordinal as a byte and the time as a long.
+     */
+    private Map<String, Entry> load() {
+        Map<String, Entry> loaded = new HashMap<String, Entry>();
+        if (!file.exists()) {
+            return loaded;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                Log.d(this.getClass().getSimpleName(), "Ignoring " + file + ": unknown format");
+                return loaded;
+            }
+            int count = buffer.getInt();
+            NabtoConnectionType[] types = NabtoConnectionType.values();
+            for (int i = 0; i < count && i < MAX_ENTRIES; i++) {
+                byte[] id = new byte[buffer.getShort() & 0xffff];
+                buffer.get(id);
+                int type = buffer.get();
+                long time = buffer.getLong();
+                if (type >= 0 && type < types.length) {
+                    loaded.put(new String(id, UTF_8), new Entry(types[type], time));
+                }
+            }
+        } catch (IOException e) {
+            Log.d(this.getClass().getSimpleName(), "Failed to load " + file + ": " + e);
+        } catch (BufferUnderflowException e) {
+            Log.d(this.getClass().getSimpleName(), "Ignoring truncated " + file);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private void save() {
+        ByteBuffer buffer;
+        int snapshot;
+        synchronized (this) {
+            if (saveTask == null) {
+                // cleared since the save was scheduled
+                return;
+            }
+            saveTask = null;
+            snapshot = ++snapshots;
+            List<byte[]> ids = new ArrayList<byte[]>(entries.size());
+            int size = 8;
+            for (String id : entries.keySet()) {
+                byte[] bytes = id.getBytes(UTF_8);
+                ids.add(bytes);
+                size += 2 + Math.min(bytes.length, 0xffff) + 1 + 8;
+            }
+            buffer = ByteBuffer.allocate(size);
+            buffer.putInt(MAGIC).putInt(entries.size());
+            int i = 0;
+            for (Entry entry : entries.values()) {
+                byte[] id = ids.get(i++);
+                int length = Math.min(id.length, 0xffff);
+                buffer.putShort((short) length).put(id, 0, length);
+                buffer.put((byte) entry.type.ordinal()).putLong(entry.timeMillis);
+            }
+        }
+        synchronized (writeLock) {
+            if (snapshot != snapshots) {
+                // a later save writes newer entries
+                return;
+            }
+            File temp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(temp);
+                out.write(buffer.array(), 0, buffer.position());
+                out.getFD().sync();
+                out.close();
+                out = null;
+                if (!temp.renameTo(file)) {
+                    Log.d(this.getClass().getSimpleName(), "Failed to replace " + file);
+                }
+            } catch (IOException e) {
+                Log.d(this.getClass().getSimpleName(), "Failed to save " + file + ": " + e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+}
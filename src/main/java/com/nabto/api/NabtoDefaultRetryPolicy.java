@@ -0,0 +1,119 @@
+package com.nabto.api;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default {@link NabtoRetryPolicy}.
+ * <p>
+ *     Calls failing with a retryable status are retried up to a maximum number of attempts, with
+ *     jittered exponential backoff between attempts. Retries made by all calls sharing the policy
+ *     are limited by a retry budget per time window, so a failing core is not hammered with
+ *     retries from many threads at once.
+ * </p>
+ * <p>
+ *     By default only {@link NabtoStatus#API_NOT_INITIALIZED} is retried, after starting the
+ *     Nabto client API. Use {@link #retryOn(NabtoStatus, boolean)} and
+ *     {@link #noRetryOn(NabtoStatus)} to change the decision for individual statuses.
+ * </p>
+ */
+public class NabtoDefaultRetryPolicy implements NabtoRetryPolicy {
+    /** Default maximum number of attempts per call, including the first attempt. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 2;
+    /** Default base delay of the exponential backoff. */
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 50;
+    /** Default maximum delay of the exponential backoff. */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 2000;
+    /** Default number of retries allowed per budget window. */
+    public static final int DEFAULT_RETRY_BUDGET = 10;
+    /** Default length of the budget window. */
+    public static final long DEFAULT_BUDGET_WINDOW_MILLIS = 10000;
+
+    private final int maxAttempts;
+    private final NabtoBackoff backoff;
+    private final int retryBudget;
+    private final long budgetWindowNanos;
+    private final Map<NabtoStatus, Boolean> retryableStatuses =
+            new EnumMap<NabtoStatus, Boolean>(NabtoStatus.class);
+
+    private long windowStartNanos;
+    private int retriesInWindow;
+
+    /**
+     * Creates a retry policy with the default settings.
+     */
+    public NabtoDefaultRetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_RETRY_BUDGET, DEFAULT_BUDGET_WINDOW_MILLIS);
+    }
+
+    /**
+     * Creates a retry policy.
+     *
+     * @param maxAttempts         Maximum number of attempts per call, including the first.
+     * @param baseDelayMillis     Backoff ceiling before the first retry, doubled for each retry.
+     * @param maxDelayMillis      Maximum backoff ceiling.
+     * @param retryBudget         Maximum number of retries per budget window, shared by all calls.
+     * @param budgetWindowMillis  Length of the budget window.
+     */
+    public NabtoDefaultRetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+                                   int retryBudget, long budgetWindowMillis) {
+        if (maxAttempts < 1 || retryBudget < 0 || budgetWindowMillis <= 0) {
+            throw new IllegalArgumentException("Invalid retry policy settings");
+        }
+        this.maxAttempts = maxAttempts;
+        this.backoff = new NabtoBackoff(baseDelayMillis, maxDelayMillis);
+        this.retryBudget = retryBudget;
+        this.budgetWindowNanos = TimeUnit.MILLISECONDS.toNanos(budgetWindowMillis);
+        this.windowStartNanos = System.nanoTime();
+        retryOn(NabtoStatus.API_NOT_INITIALIZED, true);
+    }
+
+    /**
+     * Retry calls failing with the specified status.
+     *
+     * @param status   The status to retry.
+     * @param restart  Whether to start the Nabto client API before retrying.
+     */
+    public synchronized void retryOn(NabtoStatus status, boolean restart) {
+        retryableStatuses.put(status, restart);
+    }
+
+    /**
+     * Do not retry calls failing with the specified status.
+     *
+     * @param status   The status not to retry.
+     */
+    public synchronized void noRetryOn(NabtoStatus status) {
+        retryableStatuses.remove(status);
+    }
+
+    @Override
+    public synchronized long retryDelayMillis(NabtoStatus status, int attempt) {
+        if (attempt >= maxAttempts || !retryableStatuses.containsKey(status)) {
+            return NO_RETRY;
+        }
+        return backoff.delayMillis(attempt);
+    }
+
+    @Override
+    public synchronized boolean restartBeforeRetry(NabtoStatus status) {
+        Boolean restart = retryableStatuses.get(status);
+        return restart != null && restart;
+    }
+
+    @Override
+    public synchronized boolean acquireRetryPermit() {
+        long now = System.nanoTime();
+        if (now - windowStartNanos >= budgetWindowNanos) {
+            windowStartNanos = now;
+            retriesInWindow = 0;
+        }
+        if (retriesInWindow >= retryBudget) {
+            return false;
+        }
+        retriesInWindow++;
+        return true;
+    }
+}
@@ -0,0 +1,77 @@
+package com.nabto.api;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * The changes of the local devices found by a {@link NabtoDiscoveryService} between two
+ * snapshot versions, see {@link NabtoDiscoveryService#deltaSince(long)}.
+ */
+public class NabtoDeviceDelta {
+    private final long fromVersion;
+    private final long toVersion;
+    private final Collection<String> appeared;
+    private final Collection<String> disappeared;
+    private final boolean reset;
+
+    NabtoDeviceDelta(long fromVersion, long toVersion, Collection<String> appeared,
+                     Collection<String> disappeared, boolean reset) {
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.appeared = Collections.unmodifiableCollection(appeared);
+        this.disappeared = Collections.unmodifiableCollection(disappeared);
+        this.reset = reset;
+    }
+
+    /**
+     * @return The version the delta was requested from.
+     */
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    /**
+     * @return The snapshot version the delta leads to; pass it to the next call of
+     *         {@link NabtoDiscoveryService#deltaSince(long)}.
+     */
+    public long getToVersion() {
+        return toVersion;
+    }
+
+    /**
+     * @return The IDs of devices that appeared, or all devices if {@link #isReset()}.
+     */
+    public Collection<String> getAppeared() {
+        return appeared;
+    }
+
+    /**
+     * @return The IDs of devices that disappeared.
+     */
+    public Collection<String> getDisappeared() {
+        return disappeared;
+    }
+
+    /**
+     * Whether the changes since the requested version are no longer known. The caller must then
+     * replace its devices with {@link #getAppeared()}, which holds all current devices.
+     *
+     * @return {@code true} if the delta is a full reset.
+     */
+    public boolean isReset() {
+        return reset;
+    }
+
+    /**
+     * @return {@code true} if no device appeared or disappeared.
+     */
+    public boolean isEmpty() {
+        return !reset && appeared.isEmpty() && disappeared.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "v" + fromVersion + " -> v" + toVersion + (reset ? " reset " : " +") + appeared
+                + " -" + disappeared;
+    }
+}
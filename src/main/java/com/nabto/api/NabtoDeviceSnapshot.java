@@ -0,0 +1,57 @@
+package com.nabto.api;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * An immutable set of local devices found by a {@link NabtoDiscoveryService}.
+ * <p>
+ *     The version increases each time devices appear or disappear, and only then; discovery
+ *     rounds that find the same devices keep the same snapshot. Compare versions to tell whether
+ *     anything changed, and use {@link NabtoDiscoveryService#deltaSince(long)} to get the
+ *     changes since an earlier snapshot.
+ * </p>
+ */
+public class NabtoDeviceSnapshot {
+    private final long version;
+    private final Set<String> devices;
+
+    NabtoDeviceSnapshot(long version, Set<String> devices) {
+        this.version = version;
+        this.devices = Collections.unmodifiableSet(devices);
+    }
+
+    /**
+     * @return The version of the snapshot, 0 before any device was found.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The device IDs, in the order the devices were found.
+     */
+    public Set<String> getDevices() {
+        return devices;
+    }
+
+    /**
+     * @param deviceId  The device ID.
+     * @return {@code true} if the device is in the snapshot.
+     */
+    public boolean contains(String deviceId) {
+        return devices.contains(deviceId);
+    }
+
+    /**
+     * @return The number of devices.
+     */
+    public int size() {
+        return devices.size();
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + " " + devices;
+    }
+}
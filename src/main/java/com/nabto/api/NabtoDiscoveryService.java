@@ -0,0 +1,313 @@
+package com.nabto.api;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs local device discovery in the background and keeps the result.
+ * <p>
+ *     {@link NabtoApi#getLocalDevices()} blocks for a broadcast discovery on every call. The
+ *     service runs discovery periodically instead, so {@link #getDevices()} returns immediately
+ *     with the devices found so far and when each was last seen. Listeners are told which devices
+ *     appeared and disappeared, on an event thread of the service, after the new devices are
+ *     published. Discovery responses can get lost, so a device disappears only
+ *     when it has been missing from several rounds in a row.
+ * </p>
+ * <p>
+ *     Device IDs are interned: while a device is known it is always reported with the same
+ *     string instance. {@link #getSnapshot()} returns an immutable, versioned set of the devices
+ *     that only changes when devices appear or disappear, and {@link #deltaSince(long)} returns
+ *     the changes since an earlier version, so polling costs next to nothing when nothing
+ *     changed.
+ * </p>
+ *
+ * <p>Example:</p>
+ * <pre>{@code
+ * NabtoDiscoveryService discovery = api.getDiscoveryService();
+ * discovery.addListener(listener);
+ * discovery.start(NabtoDiscoveryService.DEFAULT_PERIOD_MILLIS);
+ * ...
+ * Map<String, Long> devices = discovery.getDevices();
+ * }</pre>
+ */
+public class NabtoDiscoveryService {
+    /** Default time between discovery rounds. */
+    public static final long DEFAULT_PERIOD_MILLIS = 5000;
+    /** Default number of rounds in a row a device must be missing to disappear. */
+    public static final int DEFAULT_MISSED_ROUNDS = 3;
+
+    private static final int MAX_CHANGES = 64;
+
+    private static class Change {
+        final long version;
+        final List<String> appeared;
+        final List<String> disappeared;
+
+        Change(long version, List<String> appeared, List<String> disappeared) {
+            this.version = version;
+            this.appeared = appeared;
+            this.disappeared = disappeared;
+        }
+    }
+
+    private final List<DeviceDiscoveryListener> listeners =
+            new CopyOnWriteArrayList<DeviceDiscoveryListener>();
+    private final ExecutorService events = Executors.newSingleThreadExecutor(
+            NabtoExecutors.threadFactory("nabto-discovery-events"));
+    private final Object roundLock = new Object();
+    private final Map<String, Integer> missed = new HashMap<String, Integer>();
+    private volatile Map<String, Long> devices = Collections.emptyMap();
+    private volatile NabtoDeviceSnapshot snapshot =
+            new NabtoDeviceSnapshot(0, Collections.<String>emptySet());
+    private final Deque<Change> changes = new ArrayDeque<Change>();
+    private volatile int missedRounds = DEFAULT_MISSED_ROUNDS;
+    private long periodMillis;
+    private boolean running;
+    private int generation;
+    private ScheduledFuture<?> nextRound;
+
+    NabtoDiscoveryService() {
+    }
+
+    /**
+     * Start running discovery rounds, the first one right away.
+     *
+     * @param periodMillis  The time from the end of a round to the start of the next.
+     */
+    public synchronized void start(long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Invalid discovery period: " + periodMillis);
+        }
+        this.periodMillis = periodMillis;
+        if (!running) {
+            running = true;
+            generation++;
+            schedule(0);
+        }
+    }
+
+    /**
+     * Stop running discovery rounds. The last result is kept.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (nextRound != null) {
+            nextRound.cancel(false);
+            nextRound = null;
+        }
+    }
+
+    /**
+     * @return {@code true} if discovery rounds are running.
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @param missedRounds  The number of rounds in a row a device must be missing to disappear.
+     */
+    public void setMissedRounds(int missedRounds) {
+        if (missedRounds <= 0) {
+            throw new IllegalArgumentException("Invalid missed rounds: " + missedRounds);
+        }
+        this.missedRounds = missedRounds;
+    }
+
+    /**
+     * The devices found, without running discovery.
+     *
+     * @return An unmodifiable map from device ID to the time the device was last seen, in
+     *         milliseconds since the epoch, in the order the devices were found.
+     */
+    public Map<String, Long> getDevices() {
+        return devices;
+    }
+
+    /**
+     * The devices found, as a versioned snapshot, without running discovery.
+     *
+     * @return The current snapshot; the same instance until devices appear or disappear.
+     */
+    public NabtoDeviceSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * The devices that appeared and disappeared since an earlier snapshot.
+     * <p>
+     *     Only the most recent changes are kept. If the requested version is too old, or not a
+     *     version of this service, the delta is a reset holding all current devices.
+     * </p>
+     *
+     * @param version  The version of an earlier snapshot, or 0 for all devices.
+     * @return The changes up to the current snapshot.
+     */
+    public NabtoDeviceDelta deltaSince(long version) {
+        synchronized (changes) {
+            NabtoDeviceSnapshot current = snapshot;
+            if (version == current.getVersion()) {
+                return new NabtoDeviceDelta(version, version, Collections.<String>emptyList(),
+                        Collections.<String>emptyList(), false);
+            }
+            Change oldest = changes.peekFirst();
+            if (version > current.getVersion() || version < 0 || oldest == null
+                    || version < oldest.version - 1) {
+                return new NabtoDeviceDelta(version, current.getVersion(),
+                        current.getDevices(), Collections.<String>emptyList(), true);
+            }
+            Set<String> appeared = new LinkedHashSet<String>();
+            Set<String> disappeared = new LinkedHashSet<String>();
+            for (Change change : changes) {
+                if (change.version <= version) {
+                    continue;
+                }
+                // a device that appears and disappears again between the versions is no change
+                for (String id : change.appeared) {
+                    if (!disappeared.remove(id)) {
+                        appeared.add(id);
+                    }
+                }
+                for (String id : change.disappeared) {
+                    if (!appeared.remove(id)) {
+                        disappeared.add(id);
+                    }
+                }
+            }
+            return new NabtoDeviceDelta(version, current.getVersion(), appeared, disappeared,
+                    false);
+        }
+    }
+
+    /**
+     * @param listener  The listener to notify of appeared and disappeared devices.
+     */
+    public void addListener(DeviceDiscoveryListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener  The listener to remove.
+     */
+    public void removeListener(DeviceDiscoveryListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Run a discovery round now, blocking until it completes.
+     *
+     * @return The devices found, see {@link #getDevices()}.
+     */
+    public Map<String, Long> refresh() {
+        synchronized (roundLock) {
+            String[] found = NabtoCApiWrapper.nabtoGetLocalDevices();
+            if (found == null) {
+                Log.d(this.getClass().getSimpleName(), "Failed to get local devices.");
+                return devices;
+            }
+            return update(found, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Apply the result of a discovery round. Must be called with the round lock held, or from a
+     * test. Listeners are notified on the event thread, so they never run with the lock held;
+     * notifications are queued in round order.
+     */
+    Map<String, Long> update(String[] found, long now) {
+        Map<String, Long> previous = devices;
+        Map<String, Long> updated = new LinkedHashMap<String, Long>(previous);
+        List<String> appeared = new ArrayList<String>();
+        List<String> disappeared = new ArrayList<String>();
+        for (String id : found) {
+            // put keeps the key of a known device, which interns the ID
+            if (updated.put(id, now) == null) {
+                appeared.add(id);
+            }
+            missed.remove(id);
+        }
+        for (String id : previous.keySet()) {
+            if (updated.get(id) != now) {
+                Integer count = missed.get(id);
+                int rounds = count == null ? 1 : count + 1;
+                if (rounds >= missedRounds) {
+                    missed.remove(id);
+                    updated.remove(id);
+                    disappeared.add(id);
+                } else {
+                    missed.put(id, rounds);
+                }
+            }
+        }
+        devices = Collections.unmodifiableMap(updated);
+        if (!appeared.isEmpty() || !disappeared.isEmpty()) {
+            synchronized (changes) {
+                long version = snapshot.getVersion() + 1;
+                changes.addLast(new Change(version, appeared, disappeared));
+                if (changes.size() > MAX_CHANGES) {
+                    changes.removeFirst();
+                }
+                snapshot = new NabtoDeviceSnapshot(version,
+                        new LinkedHashSet<String>(updated.keySet()));
+            }
+            notifyListeners(Collections.unmodifiableList(appeared),
+                    Collections.unmodifiableList(disappeared));
+        }
+        return devices;
+    }
+
+    private void notifyListeners(final List<String> appeared, final List<String> disappeared) {
+        events.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (DeviceDiscoveryListener listener : listeners) {
+                    listener.onDevicesChanged(appeared, disappeared);
+                }
+            }
+        });
+    }
+
+    private void schedule(long delayMillis) {
+        final int scheduledGeneration = generation;
+        nextRound = NabtoExecutors.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                NabtoExecutors.blocking().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        round(scheduledGeneration);
+                    }
+                });
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void round(int scheduledGeneration) {
+        synchronized (this) {
+            if (!running || scheduledGeneration != generation) {
+                return;
+            }
+        }
+        refresh();
+        synchronized (this) {
+            if (running && scheduledGeneration == generation) {
+                schedule(periodMillis);
+            }
+        }
+    }
+}
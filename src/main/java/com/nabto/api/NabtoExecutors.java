@@ -0,0 +1,65 @@
+package com.nabto.api;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background threads shared by the Nabto client API wrapper.
+ * <p>
+ *     All periodic and delayed work of the wrapper runs on a single small scheduler, so the
+ *     number of background threads does not grow with the number of sessions or tunnels. Tasks
+ *     must not block for long; blocking calls into the core, such as calls waiting for the
+ *     network, belong on the {@link #blocking()} executor.
+ * </p>
+ */
+class NabtoExecutors {
+    private static final long BLOCKING_KEEP_ALIVE_SECONDS = 30;
+
+    private static ScheduledExecutorService scheduler;
+    private static ExecutorService blocking;
+
+    private NabtoExecutors() {
+    }
+
+    static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            ScheduledThreadPoolExecutor executor =
+                    new ScheduledThreadPoolExecutor(1, threadFactory("nabto-scheduler"));
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            scheduler = executor;
+        }
+        return scheduler;
+    }
+
+    /**
+     * Executor for blocking calls into the core. Threads are created on demand and stopped
+     * again when idle.
+     */
+    static synchronized ExecutorService blocking() {
+        if (blocking == null) {
+            blocking = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    BLOCKING_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), threadFactory("nabto-blocking"));
+        }
+        return blocking;
+    }
+
+    static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,135 @@
+package com.nabto.api;
+
+import java.util.Arrays;
+
+/**
+ * The public key fingerprint of a certificate.
+ * <p>
+ *     Fingerprints are immutable. The lower case hex form is computed on first use and kept.
+ *     {@link #equals(Object)} and {@link #matches(byte[])} take the same time no matter where
+ *     the fingerprints differ, so comparing against a pinned fingerprint leaks nothing through
+ *     timing.
+ * </p>
+ */
+public final class NabtoFingerprint {
+    /** The length of a fingerprint in bytes. */
+    public static final int LENGTH = 16;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final byte[] bytes;
+    private volatile String hex;
+
+    private NabtoFingerprint(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Create a fingerprint from raw bytes.
+     *
+     * @param bytes  The {@link #LENGTH} bytes of the fingerprint, copied.
+     * @return The fingerprint.
+     */
+    public static NabtoFingerprint fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length != LENGTH) {
+            throw new IllegalArgumentException("Invalid fingerprint length: "
+                    + (bytes == null ? null : bytes.length));
+        }
+        return new NabtoFingerprint(bytes.clone());
+    }
+
+    /**
+     * Parse a fingerprint in hex, as returned by {@link #toHex()}. Upper case digits and ':'
+     * separators between bytes are accepted.
+     *
+     * @param hex  The fingerprint in hex.
+     * @return The fingerprint.
+     */
+    public static NabtoFingerprint fromHex(String hex) {
+        byte[] bytes = new byte[LENGTH];
+        int count = 0;
+        int i = 0;
+        while (i < hex.length()) {
+            if (hex.charAt(i) == ':' && count > 0) {
+                i++;
+            }
+            if (count == LENGTH || i + 1 >= hex.length()) {
+                throw new IllegalArgumentException("Invalid fingerprint: " + hex);
+            }
+            int high = Character.digit(hex.charAt(i), 16);
+            int low = Character.digit(hex.charAt(i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid fingerprint: " + hex);
+            }
+            bytes[count++] = (byte) ((high << 4) | low);
+            i += 2;
+        }
+        if (count != LENGTH) {
+            throw new IllegalArgumentException("Invalid fingerprint: " + hex);
+        }
+        return new NabtoFingerprint(bytes);
+    }
+
+    /**
+     * Wrap a buffer filled by the core, without copying it.
+     */
+    static NabtoFingerprint wrap(byte[] bytes) {
+        return new NabtoFingerprint(bytes);
+    }
+
+    /**
+     * @return A copy of the raw bytes.
+     */
+    public byte[] getBytes() {
+        return bytes.clone();
+    }
+
+    /**
+     * @return The fingerprint as 32 lower case hex digits without separators.
+     */
+    public String toHex() {
+        String result = hex;
+        if (result == null) {
+            char[] chars = new char[2 * LENGTH];
+            for (int i = 0; i < LENGTH; i++) {
+                chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+                chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+            }
+            result = new String(chars);
+            hex = result;
+        }
+        return result;
+    }
+
+    /**
+     * Compare with raw fingerprint bytes in constant time.
+     *
+     * @param other  The bytes to compare with.
+     * @return {@code true} if the bytes are this fingerprint.
+     */
+    public boolean matches(byte[] other) {
+        if (other == null || other.length != LENGTH) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            diff |= bytes[i] ^ other[i];
+        }
+        return diff == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof NabtoFingerprint && matches(((NabtoFingerprint) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
@@ -0,0 +1,138 @@
+package com.nabto.api;
+
+import java.util.concurrent.Future;
+
+/**
+ * Lifecycle state of a native handle wrapped by {@link Session}, {@link Stream} or
+ * {@link Tunnel}.
+ * <p>
+ *     The state is kept apart from the wrapping object so that {@link NabtoHandleReaper} can
+ *     still reach it after the wrapper has been garbage collected.
+ * </p>
+ */
+class NabtoHandleLifecycle {
+    private volatile NabtoApi owner;
+    private boolean closed;
+    private NabtoHandleReaper.Registration registration;
+    private NabtoPortAllocator portAllocator;
+    private int port;
+    private Future<?> task;
+    private int users;
+
+    NabtoApi getOwner() {
+        return owner;
+    }
+
+    synchronized void open(NabtoApi owner, NabtoHandleReaper.Registration registration) {
+        this.owner = owner;
+        this.registration = registration;
+    }
+
+    /**
+     * Hold a local port reserved with the allocator until {@link #releasePort()}.
+     */
+    synchronized void holdPort(NabtoPortAllocator allocator, int port) {
+        this.portAllocator = allocator;
+        this.port = port;
+    }
+
+    /**
+     * Hand the held local port over to the caller, which must then release it.
+     *
+     * @return The allocator the port is reserved with, or {@code null} if no port is held.
+     */
+    synchronized NabtoPortAllocator takePort() {
+        NabtoPortAllocator allocator = portAllocator;
+        portAllocator = null;
+        return allocator;
+    }
+
+    /**
+     * Return the held local port to its allocator, if any. Every path that closes the native
+     * handle calls this once the handle is closed; later calls do nothing.
+     */
+    void releasePort() {
+        NabtoPortAllocator allocator;
+        int released;
+        synchronized (this) {
+            allocator = portAllocator;
+            released = port;
+            portAllocator = null;
+        }
+        if (allocator != null) {
+            allocator.release(released);
+        }
+    }
+
+    /**
+     * Cancel a background task working on the handle when the handle is closed, by whichever
+     * path closes it. The task is cancelled right away if the handle is already closed.
+     */
+    void cancelOnClose(Future<?> task) {
+        synchronized (this) {
+            if (!closed) {
+                this.task = task;
+                return;
+            }
+        }
+        task.cancel(false);
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Keep the handle from being closed while the native handle is used outside the calls of
+     * its owner, e.g. polled in the background. {@link #markClosed()} waits until every
+     * successful acquire has been released.
+     *
+     * @return {@code true} if the handle is open; {@link #release()} must then be called.
+     */
+    synchronized boolean acquire() {
+        if (closed) {
+            return false;
+        }
+        users++;
+        return true;
+    }
+
+    synchronized void release() {
+        users--;
+        if (users == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks the handle closed, after waiting for the users that acquired it.
+     *
+     * @return {@code true} if the handle was open, {@code false} if it was already closed.
+     */
+    synchronized boolean markClosed() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        boolean interrupted = false;
+        while (users > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (registration != null) {
+            registration.unregister();
+            registration = null;
+        }
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        return true;
+    }
+}
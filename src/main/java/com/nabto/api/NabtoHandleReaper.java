@@ -0,0 +1,182 @@
+package com.nabto.api;
+
+import android.util.Log;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closes native handles whose {@link Session}, {@link Stream} or {@link Tunnel} wrapper was
+ * garbage collected without being closed.
+ * <p>
+ *     Every successfully opened handle is registered with a phantom reference to its wrapper.
+ *     When the wrapper becomes unreachable while still open, a background thread closes the
+ *     native handle through a new wrapper around the same native handle and counts the leak.
+ *     A collected holder of a session cached by {@link NabtoSessionCache} releases its
+ *     reference instead. With leak tracking enabled, the stack trace of the allocation is
+ *     recorded as well.
+ * </p>
+ */
+class NabtoHandleReaper {
+    private static final int MAX_RECORDED_LEAKS = 64;
+
+    enum Type {
+        SESSION, STREAM, TUNNEL
+    }
+
+    class Registration extends PhantomReference<Object> {
+        private final Type type;
+        private final Object nativeHandle;
+        private final NabtoHandleLifecycle lifecycle;
+        private final Throwable allocationSite;
+
+        Registration(Object wrapper, Type type, Object nativeHandle,
+                     NabtoHandleLifecycle lifecycle, Throwable allocationSite) {
+            super(wrapper, queue);
+            this.type = type;
+            this.nativeHandle = nativeHandle;
+            this.lifecycle = lifecycle;
+            this.allocationSite = allocationSite;
+        }
+
+        void unregister() {
+            clear();
+            synchronized (registrations) {
+                registrations.remove(this);
+            }
+        }
+
+        void reclaim() {
+            synchronized (registrations) {
+                if (!registrations.remove(this)) {
+                    return;
+                }
+            }
+            if (!lifecycle.markClosed()) {
+                return;
+            }
+            NabtoApi owner = lifecycle.getOwner();
+            NabtoStatus status;
+            switch (type) {
+                case SESSION:
+                    status = owner.closeCollectedSession(nativeHandle);
+                    break;
+                case STREAM:
+                    status = owner.coreStreamClose(
+                            new Stream(nativeHandle, NabtoStatus.OK.toInteger()));
+                    break;
+                default:
+                    status = owner.coreTunnelClose(
+                            new Tunnel(nativeHandle, NabtoStatus.OK.toInteger()));
+                    break;
+            }
+            lifecycle.releasePort();
+            leakCounts[type.ordinal()].incrementAndGet();
+            if (allocationSite != null) {
+                synchronized (leaks) {
+                    if (leaks.size() == MAX_RECORDED_LEAKS) {
+                        leaks.removeFirst();
+                    }
+                    leaks.addLast(allocationSite);
+                }
+                Log.w(NabtoHandleReaper.class.getSimpleName(), "Closed leaked " + type
+                        + " handle: " + status, allocationSite);
+            } else {
+                Log.w(NabtoHandleReaper.class.getSimpleName(), "Closed leaked " + type
+                        + " handle: " + status + " (enable leak tracking to see allocation site)");
+            }
+        }
+    }
+
+    private static NabtoHandleReaper instance;
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    private final Set<Registration> registrations = new HashSet<Registration>();
+    private final AtomicLong[] leakCounts = new AtomicLong[Type.values().length];
+    private final LinkedList<Throwable> leaks = new LinkedList<Throwable>();
+    private volatile boolean trackAllocations;
+
+    private NabtoHandleReaper() {
+        for (int i = 0; i < leakCounts.length; i++) {
+            leakCounts[i] = new AtomicLong();
+        }
+        Thread thread = NabtoExecutors.threadFactory("nabto-reaper").newThread(new Runnable() {
+            @Override
+            public void run() {
+                reap();
+            }
+        });
+        thread.start();
+    }
+
+    static synchronized NabtoHandleReaper get() {
+        if (instance == null) {
+            instance = new NabtoHandleReaper();
+        }
+        return instance;
+    }
+
+    void setTrackAllocations(boolean trackAllocations) {
+        this.trackAllocations = trackAllocations;
+    }
+
+    /**
+     * Registers an open handle for reclamation.
+     */
+    void register(Object wrapper, Type type, Object nativeHandle, NabtoHandleLifecycle lifecycle,
+                  NabtoApi owner) {
+        Throwable allocationSite = trackAllocations
+                ? new Throwable(type + " allocated here")
+                : null;
+        Registration registration = new Registration(wrapper, type, nativeHandle, lifecycle,
+                allocationSite);
+        synchronized (registrations) {
+            registrations.add(registration);
+        }
+        lifecycle.open(owner, registration);
+    }
+
+    /**
+     * Marks all registered handles closed without closing them and releases their local ports,
+     * used when the core has been shut down and all handles are gone.
+     */
+    void forgetAll() {
+        List<Registration> all;
+        synchronized (registrations) {
+            all = new ArrayList<Registration>(registrations);
+        }
+        for (Registration registration : all) {
+            registration.lifecycle.markClosed();
+            registration.lifecycle.releasePort();
+        }
+    }
+
+    NabtoLeakReport report() {
+        List<Throwable> sites;
+        synchronized (leaks) {
+            sites = new ArrayList<Throwable>(leaks);
+        }
+        return new NabtoLeakReport(leakCounts[Type.SESSION.ordinal()].get(),
+                leakCounts[Type.STREAM.ordinal()].get(),
+                leakCounts[Type.TUNNEL.ordinal()].get(), sites);
+    }
+
+    private void reap() {
+        while (true) {
+            try {
+                Registration registration = (Registration) queue.remove();
+                registration.reclaim();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Log.e(this.getClass().getSimpleName(), "Failed to reclaim handle", e);
+            }
+        }
+    }
+}
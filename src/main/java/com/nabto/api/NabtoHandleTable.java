@@ -0,0 +1,32 @@
+package com.nabto.api;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Wrapper side state of native handles, keyed by the {@link Session}, {@link Stream} or
+ * {@link Tunnel} object.
+ * <p>
+ *     The handle classes are generated with the native library and must not be changed here,
+ *     so state the wrapper keeps per handle lives in this table instead. Keys are held weakly
+ *     and compared by identity, so an entry goes away with its handle object. Values must not
+ *     refer to their key.
+ * </p>
+ */
+abstract class NabtoHandleTable<K, V> {
+    private final Map<K, V> table = new WeakHashMap<K, V>();
+
+    abstract V create();
+
+    /**
+     * @return The state of the handle, created on first use.
+     */
+    synchronized V get(K handle) {
+        V value = table.get(handle);
+        if (value == null) {
+            value = create();
+            table.put(handle, value);
+        }
+        return value;
+    }
+}
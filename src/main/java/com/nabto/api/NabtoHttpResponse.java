@@ -0,0 +1,73 @@
+package com.nabto.api;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A response received by {@link NabtoTunnelHttpClient}.
+ */
+public class NabtoHttpResponse {
+    private final int statusCode;
+    private final String reason;
+    private final Map<String, List<String>> headers;
+    private final ByteBuffer body;
+
+    NabtoHttpResponse(int statusCode, String reason, Map<String, List<String>> headers,
+                      ByteBuffer body) {
+        this.statusCode = statusCode;
+        this.reason = reason;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.body = body;
+    }
+
+    /**
+     * @return The HTTP status code, e.g. 200.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return The reason phrase of the status line.
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return The response headers, keyed by lower case header name.
+     */
+    public Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @param name  The header name, in any case.
+     * @return The first value of the header, or {@code null} if it is not present.
+     */
+    public String getHeader(String name) {
+        List<String> values = headers.get(name.toLowerCase(Locale.US));
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * The response body.
+     * <p>
+     *     The buffer wraps the array the body was read into, without copying it. It is read-only;
+     *     each call returns a new view positioned at the start of the body.
+     * </p>
+     *
+     * @return The body, empty if the response has no body.
+     */
+    public ByteBuffer getBody() {
+        return body.duplicate();
+    }
+
+    @Override
+    public String toString() {
+        return statusCode + " " + reason + " (" + body.remaining() + " bytes)";
+    }
+}
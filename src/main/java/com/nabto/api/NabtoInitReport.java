@@ -0,0 +1,111 @@
+package com.nabto.api;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings of a {@link NabtoClient#init(String, String)} run.
+ * <p>
+ *     Steps run concurrently where possible, so the step timings may add up to more than the
+ *     total time. A step that did not run (or did not complete before the deadline) has a time
+ *     of -1.
+ * </p>
+ */
+public class NabtoInitReport {
+    /**
+     * The steps of client initialization.
+     */
+    public enum Step {
+        /**
+         * Opening a session with the existing profile.
+         */
+        OPEN_SESSION,
+
+        /**
+         * Probing the network before creating a profile. Runs speculatively alongside
+         * {@link #OPEN_SESSION}.
+         */
+        PROBE_NETWORK,
+
+        /**
+         * Creating the profile, if it did not exist or could not be unlocked.
+         */
+        CREATE_PROFILE,
+
+        /**
+         * Opening a session with the newly created profile.
+         */
+        REOPEN_SESSION
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final Map<Step, Long> stepNanos = new EnumMap<Step, Long>(Step.class);
+    private long totalNanos = -1;
+    private NabtoStatus status;
+    private boolean deadlineExceeded;
+
+    NabtoInitReport() {
+    }
+
+    synchronized void stepDone(Step step, long nanos) {
+        stepNanos.put(step, nanos);
+    }
+
+    synchronized void finish(NabtoStatus status, boolean deadlineExceeded) {
+        this.status = status;
+        this.deadlineExceeded = deadlineExceeded;
+        this.totalNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * The time spent in the specified step.
+     *
+     * @param step  The step.
+     * @return  The time in milliseconds, or -1 if the step did not complete.
+     */
+    public synchronized long getStepMillis(Step step) {
+        Long nanos = stepNanos.get(step);
+        return nanos == null ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * The total time of the initialization.
+     *
+     * @return  The time in milliseconds, or -1 if the initialization has not finished.
+     */
+    public synchronized long getTotalMillis() {
+        return totalNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(totalNanos);
+    }
+
+    /**
+     * The result of the initialization.
+     *
+     * @return  The status returned by init, or {@code null} if it has not finished.
+     */
+    public synchronized NabtoStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Whether the initialization was aborted because the deadline was exceeded.
+     *
+     * @return  {@code true} if the deadline was exceeded.
+     */
+    public synchronized boolean isDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("status=").append(status).append(", total=").append(getTotalMillis()).append("ms");
+        for (Step step : Step.values()) {
+            sb.append(", ").append(step).append('=').append(getStepMillis(step)).append("ms");
+        }
+        if (deadlineExceeded) {
+            sb.append(", deadline exceeded");
+        }
+        return sb.toString();
+    }
+}
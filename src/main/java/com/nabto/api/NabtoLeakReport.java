@@ -0,0 +1,60 @@
+package com.nabto.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Native handles that were garbage collected without being closed, and therefore closed by the
+ * wrapper in the background. See {@link NabtoApi#getHandleLeakReport()}.
+ */
+public class NabtoLeakReport {
+    private final long sessionLeaks;
+    private final long streamLeaks;
+    private final long tunnelLeaks;
+    private final List<Throwable> allocationSites;
+
+    NabtoLeakReport(long sessionLeaks, long streamLeaks, long tunnelLeaks,
+                    List<Throwable> allocationSites) {
+        this.sessionLeaks = sessionLeaks;
+        this.streamLeaks = streamLeaks;
+        this.tunnelLeaks = tunnelLeaks;
+        this.allocationSites = Collections.unmodifiableList(allocationSites);
+    }
+
+    /**
+     * @return The number of leaked sessions closed since the process started.
+     */
+    public long getSessionLeaks() {
+        return sessionLeaks;
+    }
+
+    /**
+     * @return The number of leaked streams closed since the process started.
+     */
+    public long getStreamLeaks() {
+        return streamLeaks;
+    }
+
+    /**
+     * @return The number of leaked tunnels closed since the process started.
+     */
+    public long getTunnelLeaks() {
+        return tunnelLeaks;
+    }
+
+    /**
+     * The allocation sites of the most recently closed leaked handles. Only handles opened while
+     * leak tracking was enabled (see {@link NabtoApi#setHandleLeakTracking(boolean)}) are
+     * included. The stack trace of each throwable shows where the handle was opened.
+     *
+     * @return The allocation sites, oldest first.
+     */
+    public List<Throwable> getAllocationSites() {
+        return allocationSites;
+    }
+
+    @Override
+    public String toString() {
+        return "sessions=" + sessionLeaks + ", streams=" + streamLeaks + ", tunnels=" + tunnelLeaks;
+    }
+}
@@ -0,0 +1,552 @@
+package com.nabto.api;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A TCP tunnel that is opened again on the same local port when it is lost.
+ * <p>
+ *     The managed tunnel watches its tunnel with the {@link NabtoTunnelMonitor}. When the tunnel
+ *     is closed or its device disappears ({@link NabtoTunnelState#READY_FOR_RECONNECT}), it is
+ *     closed and a new tunnel is opened on the same local port after a jittered exponential
+ *     backoff. Local TCP clients can therefore reconnect to the same port after a network blip.
+ *     A port from the range of {@link NabtoApi#setTunnelPortRange(int, int)} stays reserved
+ *     during the backoff, so no other tunnel is given it.
+ *     Reconnecting stops when the managed tunnel is closed, or when a tunnel cannot be opened
+ *     for another reason than {@link NabtoStatus#FAILED}, e.g. because the session was closed.
+ *     The {@link NabtoTunnelManager} does not close the tunnels of a managed tunnel.
+ * </p>
+ * <p>
+ *     Listeners see the state transitions of all tunnels in sequence, including the
+ *     {@link NabtoTunnelState#CLOSED} or {@link NabtoTunnelState#READY_FOR_RECONNECT} state of a
+ *     lost tunnel followed by the states of its replacement. Use {@link #isClosed()} to tell
+ *     whether a closed state is final.
+ * </p>
+ * <p>
+ *     Optionally a tunnel on a relay connection is upgraded, see
+ *     {@link #enableUpgrades(long, long, long)}: a second tunnel is opened on a new local port,
+ *     and if it gets a better connection (local or peer-to-peer), it replaces the relay tunnel.
+ *     Listeners then see the state of the new tunnel, and {@link #getLocalPort()} returns the new
+ *     port for new local connections. Connections to the old port keep running until the relay
+ *     tunnel is closed after a drain period.
+ * </p>
+ *
+ * <p>Example:</p>
+ * <pre>{@code
+ * NabtoManagedTunnel tunnel = new NabtoManagedTunnel(api, session, 0,
+ *         new NabtoTunnelSpec("cam.nabto.net", "localhost", 554));
+ * if (tunnel.open() == NabtoStatus.OK) {
+ *     player.play("rtsp://127.0.0.1:" + tunnel.getLocalPort() + "/stream");
+ * }
+ * }</pre>
+ */
+public class NabtoManagedTunnel implements Closeable {
+    /** Default delay ceiling of the first reconnect attempt. */
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    /** Default maximum delay between reconnect attempts. */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+    private static final long UPGRADE_CONNECT_TIMEOUT_MILLIS = 15000;
+
+    private final NabtoApi api;
+    private final Session session;
+    private final NabtoTunnelSpec spec;
+    private final List<TunnelStateListener> listeners =
+            new CopyOnWriteArrayList<TunnelStateListener>();
+    private final TunnelStateListener stateListener = new TunnelStateListener() {
+        @Override
+        public void onTunnelStateChanged(Tunnel tunnel, NabtoTunnelState previousState,
+                                         TunnelInfoResult info) {
+            stateChanged(tunnel, info);
+        }
+    };
+    private NabtoBackoff backoff = new NabtoBackoff(DEFAULT_BASE_DELAY_MILLIS,
+            DEFAULT_MAX_DELAY_MILLIS);
+    private int maxAttempts;
+    private Tunnel tunnel;
+    private NabtoTunnelState state;
+    private int localPort;
+    // the allocator localPort is reserved with while no tunnel holds it, between reconnects
+    private NabtoPortAllocator portAllocator;
+    private int attempts;
+    private int reconnects;
+    private boolean closed;
+    private ScheduledFuture<?> reconnectTask;
+    private ScheduledFuture<?> upgradeTask;
+    private long upgradeRetryNanos;
+    private long drainMillis;
+    private long lastUpgradeAttemptNanos;
+    private boolean upgrading;
+    private int upgrades;
+    private final List<Tunnel> draining = new ArrayList<Tunnel>();
+
+    /**
+     * Creates a managed tunnel. Call {@link #open()} to open it.
+     *
+     * @param api        The API used to open and close tunnels.
+     * @param session    The session to open tunnels in.
+     * @param localPort  The local TCP port to listen on (0 = PORT_ANY). If 0, the port chosen for
+     *                   the first tunnel is used for all later tunnels.
+     * @param spec       The tunnel target.
+     */
+    public NabtoManagedTunnel(NabtoApi api, Session session, int localPort, NabtoTunnelSpec spec) {
+        this.api = api;
+        this.session = session;
+        this.localPort = localPort;
+        this.spec = spec;
+    }
+
+    /**
+     * Set the reconnect backoff. The delay before reconnect attempt n is drawn uniformly from
+     * {@code [0, min(maxDelayMillis, baseDelayMillis * 2^(n-1))]}.
+     *
+     * @param baseDelayMillis  The delay ceiling of the first attempt.
+     * @param maxDelayMillis   The maximum delay.
+     */
+    public synchronized void setBackoff(long baseDelayMillis, long maxDelayMillis) {
+        backoff = new NabtoBackoff(baseDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * Set how many reconnect attempts are made in a row before giving up.
+     *
+     * @param maxAttempts  The maximum number of attempts, or 0 for no limit (the default).
+     */
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("Invalid max attempts: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Upgrade the tunnel when it is on a relay connection and a better connection is possible.
+     * <p>
+     *     Every check period, while the tunnel is on {@link NabtoTunnelState#REMOTE_RELAY} or
+     *     {@link NabtoTunnelState#REMOTE_RELAY_MICRO}, an upgrade is attempted if local discovery
+     *     finds the device, or if the retry period has passed since the last attempt. The result
+     *     of {@link NabtoApi#getDiscoveryService()} is used if it is running.
+     * </p>
+     *
+     * @param checkPeriodMillis  How often to check for an upgrade.
+     * @param retryPeriodMillis  How often to attempt an upgrade when the device is not local.
+     * @param drainMillis        How long the replaced tunnel is kept open for existing local
+     *                           connections.
+     */
+    public synchronized void enableUpgrades(long checkPeriodMillis, long retryPeriodMillis,
+                                            long drainMillis) {
+        if (checkPeriodMillis <= 0 || retryPeriodMillis < checkPeriodMillis || drainMillis < 0) {
+            throw new IllegalArgumentException("Invalid upgrade periods: " + checkPeriodMillis
+                    + ", " + retryPeriodMillis + ", " + drainMillis);
+        }
+        disableUpgrades();
+        this.upgradeRetryNanos = TimeUnit.MILLISECONDS.toNanos(retryPeriodMillis);
+        this.drainMillis = drainMillis;
+        this.lastUpgradeAttemptNanos = System.nanoTime();
+        upgradeTask = NabtoExecutors.scheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                NabtoExecutors.blocking().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        checkUpgrade();
+                    }
+                });
+            }
+        }, checkPeriodMillis, checkPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop upgrading the tunnel.
+     */
+    public synchronized void disableUpgrades() {
+        if (upgradeTask != null) {
+            upgradeTask.cancel(false);
+            upgradeTask = null;
+        }
+    }
+
+    /**
+     * @return The number of times a relay tunnel has been replaced by a better tunnel.
+     */
+    public synchronized int getUpgradeCount() {
+        return upgrades;
+    }
+
+    /**
+     * Open the first tunnel. Reconnecting starts once it is open.
+     *
+     * @return  The status of {@link NabtoApi#tunnelOpenTcp(int, String, String, int, Session)}.
+     */
+    public NabtoStatus open() {
+        synchronized (this) {
+            if (tunnel != null || closed) {
+                throw new IllegalStateException("Managed tunnel is already opened");
+            }
+        }
+        Tunnel opened = openTunnel();
+        if (opened.getStatus() != NabtoStatus.OK) {
+            return opened.getStatus();
+        }
+        attach(opened);
+        return NabtoStatus.OK;
+    }
+
+    /**
+     * @param listener  The listener to notify of state transitions of the tunnels.
+     */
+    public void addListener(TunnelStateListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener  The listener to remove.
+     */
+    public void removeListener(TunnelStateListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return The current tunnel, or {@code null} if it is being reopened or was never opened.
+     */
+    public synchronized Tunnel getTunnel() {
+        return tunnel;
+    }
+
+    /**
+     * @return The local TCP port the tunnels listen on, or 0 if not known yet.
+     */
+    public synchronized int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * @return The last state reported for the tunnels, or {@code null} if none yet.
+     */
+    public synchronized NabtoTunnelState getState() {
+        return state;
+    }
+
+    /**
+     * @return The number of times a lost tunnel has been replaced.
+     */
+    public synchronized int getReconnectCount() {
+        return reconnects;
+    }
+
+    /**
+     * @return {@code true} if the managed tunnel is closed, or has given up reconnecting.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop reconnecting and close the current tunnel.
+     */
+    @Override
+    public void close() {
+        Tunnel current;
+        List<Tunnel> drained;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            releasePort();
+            if (reconnectTask != null) {
+                reconnectTask.cancel(false);
+                reconnectTask = null;
+            }
+            disableUpgrades();
+            current = tunnel;
+            tunnel = null;
+            drained = new ArrayList<Tunnel>(draining);
+            draining.clear();
+        }
+        if (current != null) {
+            detach(current);
+        }
+        for (Tunnel old : drained) {
+            detach(old);
+        }
+    }
+
+    private Tunnel openTunnel() {
+        int port;
+        NabtoPortAllocator allocator;
+        synchronized (this) {
+            port = localPort;
+            allocator = portAllocator;
+            portAllocator = null;
+        }
+        Tunnel opened;
+        if (allocator != null) {
+            opened = api.tunnelOpenTcp(port, allocator, spec.getNabtoHost(), spec.getRemoteHost(),
+                    spec.getRemotePort(), session);
+        } else {
+            opened = api.tunnelOpenTcp(port, spec.getNabtoHost(), spec.getRemoteHost(),
+                    spec.getRemotePort(), session);
+        }
+        if (opened.getStatus() == NabtoStatus.OK) {
+            api.getTunnelManager().pin(opened);
+        }
+        synchronized (this) {
+            if (opened.getStatus() == NabtoStatus.OK) {
+                int openedPort = api.tunnelLocalPort(opened);
+                if (openedPort != 0) {
+                    localPort = openedPort;
+                }
+            } else if (allocator != null) {
+                portAllocator = allocator;
+                if (closed) {
+                    releasePort();
+                }
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * Close a lost tunnel but keep its allocated local port reserved, so no other tunnel gets
+     * the port before the reconnect opens the next tunnel on it.
+     */
+    private void detachKeepingPort(Tunnel lost) {
+        NabtoTunnelData data = NabtoTunnelData.of(lost);
+        NabtoPortAllocator allocator = data.lifecycle.takePort();
+        if (allocator != null) {
+            synchronized (this) {
+                if (closed) {
+                    allocator.release(data.localPort);
+                } else {
+                    portAllocator = allocator;
+                }
+            }
+        }
+        detach(lost);
+    }
+
+    private synchronized void releasePort() {
+        if (portAllocator != null) {
+            portAllocator.release(localPort);
+            portAllocator = null;
+        }
+    }
+
+    private void attach(Tunnel opened) {
+        boolean attached;
+        synchronized (this) {
+            attached = !closed;
+            if (attached) {
+                tunnel = opened;
+            }
+        }
+        if (!attached) {
+            detach(opened);
+            return;
+        }
+        api.getTunnelMonitor().addListener(opened, stateListener);
+    }
+
+    /**
+     * Close a tunnel opened by {@link #openTunnel()} or {@link #upgrade(NabtoTunnelState)}.
+     */
+    private void detach(Tunnel lost) {
+        api.getTunnelMonitor().removeListener(lost, stateListener);
+        api.getTunnelManager().unpin(lost);
+        if (!NabtoTunnelData.of(lost).lifecycle.isClosed()) {
+            api.tunnelClose(lost);
+        }
+    }
+
+    private void stateChanged(Tunnel source, TunnelInfoResult info) {
+        NabtoTunnelState previous;
+        NabtoTunnelState current = info.getTunnelState();
+        boolean lost = false;
+        synchronized (this) {
+            if (source != tunnel) {
+                return;
+            }
+            previous = state;
+            state = current;
+            if (NabtoTunnelMonitor.isConnected(current)) {
+                attempts = 0;
+                if (localPort == 0) {
+                    localPort = info.getPort();
+                }
+            } else if (current == NabtoTunnelState.CLOSED
+                    || current == NabtoTunnelState.READY_FOR_RECONNECT) {
+                tunnel = null;
+                lost = !closed;
+            }
+        }
+        for (TunnelStateListener listener : listeners) {
+            listener.onTunnelStateChanged(source, previous, info);
+        }
+        if (lost) {
+            Log.d(this.getClass().getSimpleName(), "Tunnel " + spec + " is " + current
+                    + ", reconnecting");
+            detachKeepingPort(source);
+            scheduleReconnect();
+        }
+    }
+
+    private void scheduleReconnect() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (maxAttempts > 0 && attempts >= maxAttempts) {
+                Log.d(this.getClass().getSimpleName(), "Failed to reconnect tunnel " + spec
+                        + ": giving up after " + attempts + " attempts");
+                closed = true;
+                releasePort();
+                return;
+            }
+            attempts++;
+            reconnectTask = NabtoExecutors.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    NabtoExecutors.blocking().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            reconnect();
+                        }
+                    });
+                }
+            }, backoff.delayMillis(attempts), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            reconnectTask = null;
+            if (closed) {
+                return;
+            }
+        }
+        Tunnel opened = openTunnel();
+        NabtoStatus status = opened.getStatus();
+        if (status == NabtoStatus.OK) {
+            synchronized (this) {
+                reconnects++;
+            }
+            attach(opened);
+        } else if (status == NabtoStatus.FAILED) {
+            scheduleReconnect();
+        } else {
+            Log.d(this.getClass().getSimpleName(), "Failed to reconnect tunnel " + spec + ": "
+                    + status);
+            synchronized (this) {
+                closed = true;
+                releasePort();
+            }
+        }
+    }
+
+    private void checkUpgrade() {
+        NabtoTunnelState current;
+        synchronized (this) {
+            current = state;
+            if (closed || upgrading || tunnel == null || rank(current) != 1) {
+                return;
+            }
+            upgrading = true;
+        }
+        try {
+            boolean retryDue;
+            synchronized (this) {
+                retryDue = System.nanoTime() - lastUpgradeAttemptNanos >= upgradeRetryNanos;
+            }
+            if (retryDue || isLocal()) {
+                synchronized (this) {
+                    lastUpgradeAttemptNanos = System.nanoTime();
+                }
+                upgrade(current);
+            }
+        } finally {
+            synchronized (this) {
+                upgrading = false;
+            }
+        }
+    }
+
+    private void upgrade(NabtoTunnelState current) {
+        Tunnel candidate = api.tunnelOpenTcp(0, spec.getNabtoHost(), spec.getRemoteHost(),
+                spec.getRemotePort(), session);
+        if (candidate.getStatus() != NabtoStatus.OK) {
+            return;
+        }
+        api.getTunnelManager().pin(candidate);
+        TunnelInfoResult info;
+        try {
+            info = api.getTunnelMonitor().awaitConnection(candidate)
+                    .get(UPGRADE_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            info = null;
+        } catch (ExecutionException e) {
+            info = null;
+        } catch (TimeoutException e) {
+            info = null;
+        }
+        final Tunnel replaced;
+        synchronized (this) {
+            if (info == null || rank(info.getTunnelState()) <= rank(state) || closed
+                    || tunnel == null) {
+                replaced = null;
+            } else {
+                replaced = tunnel;
+                tunnel = candidate;
+                int candidatePort = api.tunnelLocalPort(candidate);
+                localPort = candidatePort != 0 ? candidatePort : info.getPort();
+                upgrades++;
+                draining.add(replaced);
+            }
+        }
+        if (replaced == null) {
+            Log.d(this.getClass().getSimpleName(), "Tunnel " + spec + " stays " + current
+                    + ", upgrade got " + (info == null ? "no connection" : info.getTunnelState()));
+            detach(candidate);
+            return;
+        }
+        Log.d(this.getClass().getSimpleName(), "Upgraded tunnel " + spec + " from " + current
+                + " to " + info.getTunnelState() + " on port " + getLocalPort());
+        api.getTunnelMonitor().removeListener(replaced, stateListener);
+        api.getTunnelMonitor().addListener(candidate, stateListener);
+        NabtoExecutors.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (NabtoManagedTunnel.this) {
+                    if (!draining.remove(replaced)) {
+                        return;
+                    }
+                }
+                detach(replaced);
+            }
+        }, drainMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Uses the discovery service result if it is running, otherwise runs a discovery.
+     */
+    private boolean isLocal() {
+        NabtoDiscoveryService discovery = api.getDiscoveryService();
+        if (discovery.isRunning()) {
+            return discovery.getDevices().containsKey(spec.getNabtoHost());
+        }
+        return api.getLocalDevices().contains(spec.getNabtoHost());
+    }
+
+    private static int rank(NabtoTunnelState state) {
+        return NabtoConnectionPathCache.rank(NabtoConnectionPathCache.toConnectionType(state));
+    }
+}
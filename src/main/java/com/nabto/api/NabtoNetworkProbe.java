@@ -0,0 +1,292 @@
+package com.nabto.api;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes network connectivity for a {@link NabtoClient} and remembers a successful result.
+ * <p>
+ *     A successful probe is reused for the configured time to live, so account calls made in
+ *     a row probe the network once. The result is discarded when the device connectivity
+ *     changes, which is watched with a network callback from API level 21 and the connectivity
+ *     broadcast below. Concurrent callers share one probe. Several hosts can be probed in
+ *     parallel; the probe succeeds as soon as one of them is reached.
+ * </p>
+ */
+public class NabtoNetworkProbe {
+    /** Default time a successful probe is reused. */
+    public static final long DEFAULT_TTL_MILLIS = 60000;
+    /** Default timeout of a probe. */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    private final NabtoApi api;
+    private final NabtoRetrier retrier;
+    private final Context context;
+    private volatile long ttlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL_MILLIS);
+    private volatile int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile List<String> hostnames = Arrays.asList((String) null);
+    private long okTimeNanos;
+    private boolean ok;
+    private int generation;
+    private NabtoSettableFuture<NabtoStatus> inFlight;
+    private BroadcastReceiver connectivityReceiver;
+    private ConnectivityManager connectivityManager;
+    private NetworkWatcher networkWatcher;
+
+    NabtoNetworkProbe(NabtoApi api, NabtoRetrier retrier, Context context) {
+        this.api = api;
+        this.retrier = retrier;
+        this.context = context;
+    }
+
+    /**
+     * @param ttlMillis  How long a successful probe is reused, 0 to probe every time.
+     */
+    public void setTtl(long ttlMillis) {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("Invalid TTL: " + ttlMillis);
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * @param timeoutMillis  The timeout of a probe.
+     */
+    public void setTimeout(int timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + timeoutMillis);
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Set the hosts to probe in parallel. A {@code null} host is the portal host name from the
+     * configuration, which is the default.
+     *
+     * @param hostnames  The hosts to probe.
+     */
+    public void setHostnames(String... hostnames) {
+        if (hostnames.length == 0) {
+            throw new IllegalArgumentException("No hosts to probe");
+        }
+        this.hostnames = new ArrayList<String>(Arrays.asList(hostnames));
+        invalidate();
+    }
+
+    /**
+     * Forget the last successful probe.
+     */
+    public synchronized void invalidate() {
+        ok = false;
+        generation++;
+    }
+
+    /**
+     * Probe the network unless a recent probe succeeded.
+     *
+     * @return  {@link NabtoStatus#OK} if a host was reached, otherwise the status of the failed
+     *          probe, see {@link NabtoApi#probeNetwork(int, String)}.
+     */
+    public NabtoStatus probe() {
+        NabtoSettableFuture<NabtoStatus> future;
+        boolean owner = false;
+        int probeGeneration;
+        synchronized (this) {
+            if (ok && System.nanoTime() - okTimeNanos < ttlNanos) {
+                return NabtoStatus.OK;
+            }
+            if (inFlight == null) {
+                inFlight = new NabtoSettableFuture<NabtoStatus>();
+                owner = true;
+            }
+            future = inFlight;
+            probeGeneration = generation;
+        }
+        if (owner) {
+            NabtoStatus status = probeHosts();
+            synchronized (this) {
+                inFlight = null;
+                if (status == NabtoStatus.OK && probeGeneration == generation) {
+                    ok = true;
+                    okTimeNanos = System.nanoTime();
+                }
+            }
+            if (status == NabtoStatus.OK) {
+                watchConnectivity();
+            }
+            future.set(status);
+            return status;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return NabtoStatus.ABORTED;
+        } catch (ExecutionException e) {
+            return NabtoStatus.FAILED;
+        }
+    }
+
+    private NabtoStatus probeHosts() {
+        final int timeout = timeoutMillis;
+        List<String> hosts = hostnames;
+        if (hosts.size() == 1) {
+            return probeHost(hosts.get(0), timeout);
+        }
+        CompletionService<NabtoStatus> probes =
+                new ExecutorCompletionService<NabtoStatus>(NabtoExecutors.blocking());
+        List<Future<NabtoStatus>> futures = new ArrayList<Future<NabtoStatus>>();
+        for (final String host : hosts) {
+            futures.add(probes.submit(new Callable<NabtoStatus>() {
+                @Override
+                public NabtoStatus call() {
+                    return probeHost(host, timeout);
+                }
+            }));
+        }
+        NabtoStatus failure = NabtoStatus.NO_NETWORK;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                NabtoStatus status = probes.take().get();
+                if (status == NabtoStatus.OK) {
+                    return status;
+                }
+                failure = status;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return NabtoStatus.ABORTED;
+        } catch (ExecutionException e) {
+            return NabtoStatus.FAILED;
+        } finally {
+            // the remaining probes time out by themselves, their results are not needed
+            for (Future<NabtoStatus> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return failure;
+    }
+
+    private NabtoStatus probeHost(final String host, final int timeout) {
+        return retrier.call(new NabtoRetrier.StatusCall() {
+            @Override
+            NabtoStatus invoke() {
+                return api.probeNetwork(timeout, host);
+            }
+        });
+    }
+
+    /**
+     * Stop watching connectivity changes, e.g. when the client is paused. The last successful
+     * probe is forgotten, as changes are no longer seen. Watching starts again with the next
+     * successful probe.
+     */
+    synchronized void stopWatching() {
+        try {
+            if (networkWatcher != null) {
+                connectivityManager.unregisterNetworkCallback(networkWatcher);
+            }
+            if (connectivityReceiver != null) {
+                context.getApplicationContext().unregisterReceiver(connectivityReceiver);
+            }
+        } catch (RuntimeException e) {
+            Log.d(this.getClass().getSimpleName(), "Failed to stop watching connectivity: " + e);
+        }
+        networkWatcher = null;
+        connectivityManager = null;
+        connectivityReceiver = null;
+        invalidate();
+    }
+
+    private synchronized void watchConnectivity() {
+        if (connectivityReceiver != null || networkWatcher != null || context == null) {
+            return;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= 21) {
+                ConnectivityManager connectivity = (ConnectivityManager) context
+                        .getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+                NetworkWatcher watcher = new NetworkWatcher(connectivity.getAllNetworks());
+                NetworkRequest request = new NetworkRequest.Builder()
+                        .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build();
+                connectivity.registerNetworkCallback(request, watcher);
+                connectivityManager = connectivity;
+                networkWatcher = watcher;
+            } else {
+                BroadcastReceiver receiver = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        if (!isInitialStickyBroadcast()) {
+                            connectivityChanged();
+                        }
+                    }
+                };
+                context.getApplicationContext().registerReceiver(receiver,
+                        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+                connectivityReceiver = receiver;
+            }
+        } catch (RuntimeException e) {
+            // without connectivity events the result still expires after the TTL
+            Log.d(this.getClass().getSimpleName(), "Failed to watch connectivity: " + e);
+        }
+    }
+
+    private void connectivityChanged() {
+        Log.d(this.getClass().getSimpleName(),
+                "Connectivity changed, probing network again on next use");
+        invalidate();
+    }
+
+    /**
+     * Reports networks that appear or are lost. The networks present at registration are
+     * reported as available right away, they are known already and not a change.
+     */
+    @TargetApi(21)
+    private class NetworkWatcher extends ConnectivityManager.NetworkCallback {
+        private final Set<Network> networks = new HashSet<Network>();
+
+        NetworkWatcher(Network[] current) {
+            networks.addAll(Arrays.asList(current));
+        }
+
+        @Override
+        public void onAvailable(Network network) {
+            boolean added;
+            synchronized (networks) {
+                added = networks.add(network);
+            }
+            if (added) {
+                connectivityChanged();
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            synchronized (networks) {
+                networks.remove(network);
+            }
+            connectivityChanged();
+        }
+    }
+}
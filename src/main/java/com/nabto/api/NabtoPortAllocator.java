@@ -0,0 +1,71 @@
+package com.nabto.api;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Hands out free local TCP ports from a range for tunnels opened with local port 0.
+ * <p>
+ *     A port is reserved until the tunnel on it is closed, so tunnels opened in parallel never
+ *     get the same port, also while the core has not bound the port yet. Ports bound by other
+ *     sockets are skipped. Ports are handed out round robin from the range, so a port is not
+ *     reused right after its tunnel has been closed.
+ * </p>
+ */
+class NabtoPortAllocator {
+    private final int minPort;
+    private final int maxPort;
+    private final Set<Integer> reserved = new HashSet<Integer>();
+    private int next;
+
+    NabtoPortAllocator(int minPort, int maxPort) {
+        if (minPort <= 0 || maxPort > 65535 || maxPort < minPort) {
+            throw new IllegalArgumentException("Invalid port range: " + minPort + "-" + maxPort);
+        }
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.next = minPort;
+    }
+
+    /**
+     * Reserve a free port until {@link #release(int)} is called.
+     *
+     * @return The port, or 0 if all ports in the range are reserved or in use.
+     */
+    synchronized int reserve() {
+        int size = maxPort - minPort + 1;
+        for (int i = 0; i < size; i++) {
+            int port = next;
+            next = port == maxPort ? minPort : port + 1;
+            if (!reserved.contains(port) && isFree(port)) {
+                reserved.add(port);
+                return port;
+            }
+        }
+        return 0;
+    }
+
+    synchronized void release(int port) {
+        reserved.remove(port);
+    }
+
+    private static boolean isFree(int port) {
+        ServerSocket socket = null;
+        try {
+            socket = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
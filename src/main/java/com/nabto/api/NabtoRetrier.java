@@ -0,0 +1,191 @@
+package com.nabto.api;
+
+import android.util.Log;
+
+/**
+ * Runs Nabto client API calls under a {@link NabtoRetryPolicy}.
+ * <p>
+ *     Starting the client API before a retry is coalesced: if several threads fail with
+ *     {@link NabtoStatus#API_NOT_INITIALIZED} at the same time, only the first one calls
+ *     {@link NabtoApi#startup()} and the others retry on the API it started. The API is started
+ *     before the retry delay, and also when the retry budget is exhausted.
+ * </p>
+ */
+class NabtoRetrier {
+    /**
+     * A retryable call returning a result of type {@code T}.
+     */
+    abstract static class Call<T> {
+        abstract T invoke();
+
+        abstract NabtoStatus statusOf(T result);
+
+        abstract T failed(NabtoStatus status);
+    }
+
+    abstract static class StatusCall extends Call<NabtoStatus> {
+        @Override
+        NabtoStatus statusOf(NabtoStatus result) {
+            return result;
+        }
+
+        @Override
+        NabtoStatus failed(NabtoStatus status) {
+            return status;
+        }
+    }
+
+    abstract static class SessionCall extends Call<Session> {
+        @Override
+        NabtoStatus statusOf(Session result) {
+            return result.getStatus();
+        }
+
+        @Override
+        Session failed(NabtoStatus status) {
+            return new Session(null, status.toInteger());
+        }
+    }
+
+    abstract static class RpcCall extends Call<RpcResult> {
+        @Override
+        NabtoStatus statusOf(RpcResult result) {
+            return result.getStatus();
+        }
+
+        @Override
+        RpcResult failed(NabtoStatus status) {
+            return new RpcResult(null, status.toInteger());
+        }
+    }
+
+    abstract static class UrlCall extends Call<UrlResult> {
+        @Override
+        NabtoStatus statusOf(UrlResult result) {
+            return result.getStatus();
+        }
+
+        @Override
+        UrlResult failed(NabtoStatus status) {
+            return new UrlResult(null, null, status.toInteger());
+        }
+    }
+
+    private final NabtoApi nabtoApi;
+    private final NabtoRetryMetrics metrics = new NabtoRetryMetrics();
+    private final Object startupLock = new Object();
+    private volatile NabtoRetryPolicy policy = new NabtoDefaultRetryPolicy();
+    private volatile int startupGeneration;
+    private volatile boolean started;
+
+    NabtoRetrier(NabtoApi nabtoApi) {
+        this.nabtoApi = nabtoApi;
+    }
+
+    void setPolicy(NabtoRetryPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Retry policy must not be null");
+        }
+        this.policy = policy;
+    }
+
+    NabtoRetryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Start the Nabto client API and mark all attempts made before as made on a stopped API.
+     */
+    NabtoStatus startup() {
+        synchronized (startupLock) {
+            NabtoStatus status = nabtoApi.startup();
+            if (status == NabtoStatus.OK) {
+                startupGeneration++;
+                started = true;
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Start the Nabto client API unless it was started since the last {@link #stopped()}.
+     */
+    NabtoStatus ensureStarted() {
+        if (started) {
+            return NabtoStatus.OK;
+        }
+        synchronized (startupLock) {
+            return started ? NabtoStatus.OK : startup();
+        }
+    }
+
+    /**
+     * Record that the Nabto client API was shut down.
+     */
+    void stopped() {
+        started = false;
+    }
+
+    <T> T call(Call<T> call) {
+        NabtoRetryPolicy policy = this.policy;
+        metrics.onCall();
+        int attempt = 0;
+        while (true) {
+            int generation = startupGeneration;
+            metrics.onAttempt();
+            attempt++;
+            T result = call.invoke();
+            NabtoStatus status = call.statusOf(result);
+            if (status == NabtoStatus.OK) {
+                return result;
+            }
+
+            long delay = policy.retryDelayMillis(status, attempt);
+            if (delay == NabtoRetryPolicy.NO_RETRY) {
+                metrics.onFailure();
+                return result;
+            }
+            // the budget limits re-invocations only, so the API is started even without a
+            // permit and later calls find it running
+            if (policy.restartBeforeRetry(status)) {
+                NabtoStatus startupStatus = restart(generation);
+                if (startupStatus != NabtoStatus.OK) {
+                    metrics.onFailure();
+                    return call.failed(startupStatus);
+                }
+            }
+            if (!policy.acquireRetryPermit()) {
+                Log.d(this.getClass().getSimpleName(), "Retry budget exhausted, failing with " + status);
+                metrics.onBudgetExhausted();
+                metrics.onFailure();
+                return result;
+            }
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    metrics.onFailure();
+                    return result;
+                }
+            }
+            metrics.onRetry();
+        }
+    }
+
+    private NabtoStatus restart(int failedGeneration) {
+        synchronized (startupLock) {
+            if (failedGeneration != startupGeneration) {
+                // another thread started the API after our attempt was made
+                return NabtoStatus.OK;
+            }
+            metrics.onRestart();
+            NabtoStatus status = nabtoApi.startup();
+            if (status == NabtoStatus.OK) {
+                startupGeneration++;
+                started = true;
+            }
+            return status;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.nabto.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the retry behaviour of a {@link NabtoClient}.
+ * <p>
+ *     All counters are cumulative since the client was created or {@link #reset()} was called.
+ * </p>
+ */
+public class NabtoRetryMetrics {
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong restarts = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    NabtoRetryMetrics() {
+    }
+
+    void onCall() {
+        calls.incrementAndGet();
+    }
+
+    void onAttempt() {
+        attempts.incrementAndGet();
+    }
+
+    void onRetry() {
+        retries.incrementAndGet();
+    }
+
+    void onRestart() {
+        restarts.incrementAndGet();
+    }
+
+    void onBudgetExhausted() {
+        budgetExhausted.incrementAndGet();
+    }
+
+    void onFailure() {
+        failures.incrementAndGet();
+    }
+
+    /**
+     * @return The number of calls made.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return The number of attempts made, including the first attempt of each call.
+     */
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    /**
+     * @return The number of retries made.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return The number of times the Nabto client API was started before retrying a call.
+     */
+    public long getRestarts() {
+        return restarts.get();
+    }
+
+    /**
+     * @return The number of retries denied because the retry budget was exhausted.
+     */
+    public long getBudgetExhausted() {
+        return budgetExhausted.get();
+    }
+
+    /**
+     * @return The number of calls that did not end with {@link NabtoStatus#OK}.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Reset all counters to zero.
+     */
+    public void reset() {
+        calls.set(0);
+        attempts.set(0);
+        retries.set(0);
+        restarts.set(0);
+        budgetExhausted.set(0);
+        failures.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "calls=" + getCalls() + ", attempts=" + getAttempts() + ", retries=" + getRetries()
+                + ", restarts=" + getRestarts() + ", budgetExhausted=" + getBudgetExhausted()
+                + ", failures=" + getFailures();
+    }
+}
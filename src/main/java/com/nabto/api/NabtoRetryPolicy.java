@@ -0,0 +1,49 @@
+package com.nabto.api;
+
+/**
+ * Decides if and when a failed Nabto client API call should be retried.
+ * <p>
+ *     A single policy is shared by all calls made through a {@link NabtoClient}, see
+ *     {@link NabtoClient#setRetryPolicy(NabtoRetryPolicy)}. The default implementation is
+ *     {@link NabtoDefaultRetryPolicy}.
+ * </p>
+ * <p>
+ *     Implementations must be thread safe, the policy is consulted concurrently by all threads
+ *     using the client.
+ * </p>
+ */
+public interface NabtoRetryPolicy {
+    /**
+     * Value returned by {@link #retryDelayMillis(NabtoStatus, int)} when the call should not be
+     * retried.
+     */
+    long NO_RETRY = -1;
+
+    /**
+     * Returns the number of milliseconds to wait before retrying a failed call.
+     *
+     * @param status   The status of the failed attempt.
+     * @param attempt  The number of attempts made so far (1 after the first failure).
+     * @return  The delay before the next attempt, or {@link #NO_RETRY} if the call should fail
+     *          with the given status.
+     */
+    long retryDelayMillis(NabtoStatus status, int attempt);
+
+    /**
+     * Returns whether the Nabto client API must be started (see {@link NabtoApi#startup()})
+     * before a call failing with the given status is retried.
+     *
+     * @param status   The status of the failed attempt.
+     * @return  {@code true} if the client API must be started before retrying.
+     */
+    boolean restartBeforeRetry(NabtoStatus status);
+
+    /**
+     * Takes a permit from the retry budget. Called once for each retry the policy allowed
+     * through {@link #retryDelayMillis(NabtoStatus, int)}.
+     *
+     * @return  {@code true} if the retry may proceed, {@code false} if the budget is exhausted
+     *          and the call should fail instead.
+     */
+    boolean acquireRetryPermit();
+}
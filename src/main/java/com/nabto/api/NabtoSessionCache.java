@@ -0,0 +1,328 @@
+package com.nabto.api;
+
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps sessions opened with {@link NabtoApi#openSession(String, String)} alive for a while after
+ * they are closed.
+ * <p>
+ *     An open session holds the unlocked private key of its profile in the core. Reusing it for
+ *     the next open of the same profile skips reading and decrypting the key files again. Cached
+ *     sessions are reference counted: closing a cached session only releases it, the session is
+ *     closed in the core when it has been unused for the configured time, when the cache is
+ *     invalidated, or when it has been cached for the maximum lifetime and is unused.
+ * </p>
+ * <p>
+ *     Each open hands out its own {@link Session} object for the cached session, so a holder
+ *     releases exactly one reference however often it closes its object. Holders are referred to
+ *     weakly and registered with the {@link NabtoHandleReaper}, so a holder that is garbage
+ *     collected without being closed releases its reference and is counted as a leak.
+ * </p>
+ */
+class NabtoSessionCache {
+    static final long DEFAULT_MAX_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static class Entry {
+        final String id;
+        final byte[] passwordDigest;
+        // the session opened in the core, owned by the cache
+        final Session session;
+        int references;
+        boolean evicted;
+        ScheduledFuture<?> expiry;
+        ScheduledFuture<?> retirement;
+
+        Entry(String id, byte[] passwordDigest, Session session) {
+            this.id = id;
+            this.passwordDigest = passwordDigest;
+            this.session = session;
+        }
+
+        void cancelTasks() {
+            if (expiry != null) {
+                expiry.cancel(false);
+                expiry = null;
+            }
+            if (retirement != null) {
+                retirement.cancel(false);
+                retirement = null;
+            }
+        }
+    }
+
+    private final NabtoApi api;
+    private final NabtoSessionTokenCache tokenCache;
+    private final NabtoHandleReaper reaper = NabtoHandleReaper.get();
+    private final Map<String, Entry> entriesById = new HashMap<String, Entry>();
+    private final Map<Session, Entry> entriesByHolder = new WeakHashMap<Session, Entry>();
+    // entries whose session is open in the core, by native handle, for holders that are reaped
+    private final Map<Object, Entry> entriesByHandle = new IdentityHashMap<Object, Entry>();
+    private long timeoutMillis;
+    private long maxLifetimeMillis = DEFAULT_MAX_LIFETIME_MILLIS;
+
+    NabtoSessionCache(NabtoApi api, NabtoSessionTokenCache tokenCache) {
+        this.api = api;
+        this.tokenCache = tokenCache;
+    }
+
+    synchronized void setTimeout(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative: " + timeoutMillis);
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    synchronized void setMaxLifetime(long maxLifetimeMillis) {
+        if (maxLifetimeMillis < 0) {
+            throw new IllegalArgumentException("Max lifetime must not be negative: "
+                    + maxLifetimeMillis);
+        }
+        this.maxLifetimeMillis = maxLifetimeMillis;
+    }
+
+    synchronized boolean isEnabled() {
+        return timeoutMillis > 0;
+    }
+
+    /**
+     * Returns a new holder of a cached session for the profile, or {@code null} if none
+     * matches.
+     */
+    synchronized Session acquire(String id, String password) {
+        Entry entry = entriesById.get(id);
+        if (entry == null || !MessageDigest.isEqual(entry.passwordDigest, digest(password))) {
+            return null;
+        }
+        if (entry.expiry != null) {
+            entry.expiry.cancel(false);
+            entry.expiry = null;
+        }
+        return newHolder(entry);
+    }
+
+    /**
+     * Adds a newly opened session to the cache.
+     *
+     * @return The holder of the cached session to hand out to the caller, or the session itself
+     *         if it was not cached.
+     */
+    synchronized Session add(String id, String password, Session session) {
+        if (timeoutMillis <= 0 || session.getStatus() != NabtoStatus.OK
+                || entriesById.containsKey(id)) {
+            return session;
+        }
+        final Entry entry = new Entry(id, digest(password), session);
+        entriesById.put(id, entry);
+        entriesByHandle.put(session.getHandle(), entry);
+        if (maxLifetimeMillis > 0) {
+            entry.retirement = NabtoExecutors.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    retire(entry);
+                }
+            }, maxLifetimeMillis, TimeUnit.MILLISECONDS);
+        }
+        return newHolder(entry);
+    }
+
+    /**
+     * Releases the reference of a holder. The holder is marked closed, so releasing it again
+     * fails like closing any closed session.
+     *
+     * @return {@code true} if the session is a holder of a cached session, {@code false} if
+     *         the caller must close it.
+     */
+    boolean release(Session holder) {
+        Session toClose;
+        synchronized (this) {
+            Entry entry = entriesByHolder.remove(holder);
+            if (entry == null) {
+                return false;
+            }
+            toClose = releaseReference(entry);
+        }
+        NabtoSessionData.of(holder).lifecycle.markClosed();
+        tokenCache.invalidate(holder);
+        if (toClose != null) {
+            close(toClose);
+        }
+        return true;
+    }
+
+    /**
+     * Releases the reference of a holder that was garbage collected without being released.
+     *
+     * @param nativeHandle  The native handle of the collected session.
+     * @return {@code true} if the session was a holder of a cached session, {@code false} if
+     *         the native handle must be closed.
+     */
+    boolean releaseCollected(Object nativeHandle) {
+        Session toClose;
+        synchronized (this) {
+            Entry entry = entriesByHandle.get(nativeHandle);
+            if (entry == null || entry.references == 0) {
+                return false;
+            }
+            toClose = releaseReference(entry);
+        }
+        if (toClose != null) {
+            close(toClose);
+        }
+        return true;
+    }
+
+    /**
+     * Closes unused cached sessions of the profile; sessions in use are closed when released.
+     */
+    void invalidate(String id) {
+        List<Session> toClose = new ArrayList<Session>();
+        synchronized (this) {
+            Entry entry = entriesById.get(id);
+            if (entry != null) {
+                evict(entry, toClose);
+            }
+        }
+        for (Session session : toClose) {
+            close(session);
+        }
+    }
+
+    /**
+     * Closes all unused cached sessions; sessions in use are closed when released.
+     */
+    void invalidateAll() {
+        List<Session> toClose = new ArrayList<Session>();
+        synchronized (this) {
+            for (Entry entry : new ArrayList<Entry>(entriesById.values())) {
+                evict(entry, toClose);
+            }
+        }
+        for (Session session : toClose) {
+            close(session);
+        }
+    }
+
+    /**
+     * Forgets all sessions without closing them, used when the core has been shut down. The
+     * holders are marked closed, as their handles are gone.
+     */
+    synchronized void clear() {
+        for (Entry entry : entriesByHandle.values()) {
+            entry.cancelTasks();
+        }
+        entriesById.clear();
+        entriesByHandle.clear();
+        for (Session holder : entriesByHolder.keySet()) {
+            NabtoSessionData.of(holder).lifecycle.markClosed();
+        }
+        entriesByHolder.clear();
+    }
+
+    private Session newHolder(Entry entry) {
+        Session holder = new Session(entry.session.getHandle(), NabtoStatus.OK.toInteger());
+        entry.references++;
+        entriesByHolder.put(holder, entry);
+        reaper.register(holder, NabtoHandleReaper.Type.SESSION, holder.getHandle(),
+                NabtoSessionData.of(holder).lifecycle, api);
+        return holder;
+    }
+
+    /**
+     * @return The session to close now that the entry is unused, or {@code null}.
+     */
+    private Session releaseReference(final Entry entry) {
+        entry.references--;
+        if (entry.references > 0) {
+            return null;
+        }
+        if (entry.evicted) {
+            entriesByHandle.remove(entry.session.getHandle());
+            return entry.session;
+        }
+        if (entry.expiry != null) {
+            entry.expiry.cancel(false);
+        }
+        entry.expiry = NabtoExecutors.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(entry);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        return null;
+    }
+
+    private void expire(Entry entry) {
+        synchronized (this) {
+            if (entry.references > 0 || entriesById.get(entry.id) != entry) {
+                return;
+            }
+            entriesById.remove(entry.id);
+            entriesByHandle.remove(entry.session.getHandle());
+            entry.cancelTasks();
+        }
+        Log.d(this.getClass().getSimpleName(), "Closing cached session for " + entry.id);
+        close(entry.session);
+    }
+
+    /**
+     * Stops handing out the session of an entry that reached the maximum lifetime.
+     */
+    private void retire(Entry entry) {
+        List<Session> toClose = new ArrayList<Session>();
+        synchronized (this) {
+            if (entriesById.get(entry.id) != entry) {
+                return;
+            }
+            evict(entry, toClose);
+        }
+        Log.d(this.getClass().getSimpleName(), "Cached session for " + entry.id
+                + " reached its maximum lifetime");
+        for (Session session : toClose) {
+            close(session);
+        }
+    }
+
+    private void evict(Entry entry, List<Session> toClose) {
+        entriesById.remove(entry.id);
+        entry.evicted = true;
+        entry.cancelTasks();
+        if (entry.references == 0) {
+            entriesByHandle.remove(entry.session.getHandle());
+            toClose.add(entry.session);
+        }
+    }
+
+    private void close(Session session) {
+        if (!NabtoSessionData.of(session).lifecycle.markClosed()) {
+            return;
+        }
+        tokenCache.invalidate(session);
+        NabtoStatus status = api.coreCloseSession(session);
+        if (status != NabtoStatus.OK) {
+            Log.d(this.getClass().getSimpleName(), "Failed to close cached session: " + status);
+        }
+    }
+
+    private static byte[] digest(String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return md.digest((password == null ? "" : password).getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.nabto.api;
+
+/**
+ * Wrapper side state of a {@link Session}, see {@link NabtoHandleTable}.
+ */
+class NabtoSessionData {
+    private static final NabtoHandleTable<Session, NabtoSessionData> table =
+            new NabtoHandleTable<Session, NabtoSessionData>() {
+                @Override
+                NabtoSessionData create() {
+                    return new NabtoSessionData();
+                }
+            };
+
+    final NabtoHandleLifecycle lifecycle = new NabtoHandleLifecycle();
+
+    // session token cached by NabtoSessionTokenCache
+    volatile String token;
+    volatile long tokenTimeNanos;
+
+    static NabtoSessionData of(Session session) {
+        return table.get(session);
+    }
+}
@@ -0,0 +1,149 @@
+package com.nabto.api;
+
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the session token of each {@link Session}, so reading it does not cross into the core.
+ * <p>
+ *     The token is stored with the {@link NabtoSessionData} of the session. It is fetched on
+ *     first use, and again when it is older than the configured maximum age. With background
+ *     refresh enabled, tokens are refreshed on the shared scheduler before they reach the
+ *     maximum age, so readers never wait for the core. The refresh task refers to its session
+ *     weakly and stops when the session is closed or garbage collected.
+ * </p>
+ */
+class NabtoSessionTokenCache {
+    private final NabtoApi api;
+    private final Map<Session, ScheduledFuture<?>> refreshTasks =
+            new WeakHashMap<Session, ScheduledFuture<?>>();
+    private volatile long maxAgeNanos;
+    private volatile boolean backgroundRefresh;
+
+    NabtoSessionTokenCache(NabtoApi api) {
+        this.api = api;
+    }
+
+    synchronized void setMaxAge(long maxAgeMillis, boolean backgroundRefresh) {
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Max age must not be negative: " + maxAgeMillis);
+        }
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        this.backgroundRefresh = backgroundRefresh && maxAgeMillis > 0;
+        for (ScheduledFuture<?> task : refreshTasks.values()) {
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+        refreshTasks.clear();
+    }
+
+    String get(Session session) {
+        NabtoSessionData data = NabtoSessionData.of(session);
+        String token = data.token;
+        if (token != null) {
+            long maxAge = maxAgeNanos;
+            if (maxAge == 0 || System.nanoTime() - data.tokenTimeNanos < maxAge) {
+                return token;
+            }
+        }
+        token = fetch(session);
+        if (token == null) {
+            Log.d(this.getClass().getSimpleName(), "Failed get session token.");
+            return "";
+        }
+        if (backgroundRefresh) {
+            scheduleRefresh(session);
+        }
+        return token;
+    }
+
+    void invalidate(Session session) {
+        NabtoSessionData.of(session).token = null;
+        ScheduledFuture<?> task;
+        synchronized (this) {
+            task = refreshTasks.remove(session);
+        }
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    void clear() {
+        ArrayList<Session> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<Session>(refreshTasks.keySet());
+        }
+        for (Session session : sessions) {
+            invalidate(session);
+        }
+    }
+
+    private String fetch(Session session) {
+        String token = api.coreGetSessionToken(session);
+        if (token == null || token.length() == 0) {
+            return null;
+        }
+        NabtoSessionData data = NabtoSessionData.of(session);
+        data.tokenTimeNanos = System.nanoTime();
+        data.token = token;
+        synchronized (this) {
+            if (!refreshTasks.containsKey(session)) {
+                refreshTasks.put(session, null);
+            }
+        }
+        return token;
+    }
+
+    private synchronized void scheduleRefresh(Session session) {
+        if (refreshTasks.get(session) != null) {
+            return;
+        }
+        NabtoHandleLifecycle lifecycle = NabtoSessionData.of(session).lifecycle;
+        RefreshTask refresh = new RefreshTask(session, lifecycle);
+        // refresh when three quarters of the maximum age has passed
+        long period = maxAgeNanos - maxAgeNanos / 4;
+        refresh.future = NabtoExecutors.scheduler().scheduleAtFixedRate(refresh, period, period,
+                TimeUnit.NANOSECONDS);
+        refreshTasks.put(session, refresh.future);
+        lifecycle.cancelOnClose(refresh.future);
+    }
+
+    private class RefreshTask implements Runnable {
+        private final WeakReference<Session> session;
+        private final NabtoHandleLifecycle lifecycle;
+        private volatile ScheduledFuture<?> future;
+
+        RefreshTask(Session session, NabtoHandleLifecycle lifecycle) {
+            this.session = new WeakReference<Session>(session);
+            this.lifecycle = lifecycle;
+        }
+
+        @Override
+        public void run() {
+            Session current = session.get();
+            // a concurrent close waits for the fetch, so the core never gets a freed handle
+            if (current == null || !lifecycle.acquire()) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+                return;
+            }
+            String token;
+            try {
+                token = fetch(current);
+            } finally {
+                lifecycle.release();
+            }
+            if (token == null) {
+                invalidate(current);
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.nabto.api;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} completed by the wrapper itself rather than by an executor.
+ */
+class NabtoSettableFuture<T> implements Future<T> {
+    private T value;
+    private Throwable failure;
+    private boolean done;
+    private boolean cancelled;
+
+    /**
+     * @return {@code true} if this call completed the future.
+     */
+    synchronized boolean set(T value) {
+        if (done) {
+            return false;
+        }
+        this.value = value;
+        this.done = true;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return {@code true} if this call completed the future.
+     */
+    synchronized boolean fail(Throwable failure) {
+        if (done) {
+            return false;
+        }
+        this.failure = failure;
+        this.done = true;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (done) {
+            return false;
+        }
+        cancelled = true;
+        done = true;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+}
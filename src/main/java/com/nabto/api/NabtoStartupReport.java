@@ -0,0 +1,115 @@
+package com.nabto.api;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings of the phases of a {@link NabtoApi#startup()}.
+ * <p>
+ *     Phases are timed with {@link System#nanoTime()}. The native library is loaded once per
+ *     process, so its load time is included in every report of the process. The assets of a
+ *     {@link NabtoAndroidAssetManager} and, with lazy install, the resources may be installed
+ *     after startup; the report is updated when they are. A phase that has not run has a time of
+ *     -1. With {@link NabtoApi#setStartupTracing(boolean)} the phases are also recorded as
+ *     {@code android.os.Trace} sections.
+ * </p>
+ */
+public class NabtoStartupReport {
+    /**
+     * The phases of startup.
+     */
+    public enum Phase {
+        /**
+         * Loading the native library with {@code System.loadLibrary}.
+         */
+        LOAD_LIBRARY,
+
+        /**
+         * Copying the bundled assets of a {@link NabtoAndroidAssetManager}.
+         */
+        ASSET_INSTALL,
+
+        /**
+         * Initializing the core with {@code nabtoStartup}.
+         */
+        CORE_STARTUP,
+
+        /**
+         * Installing the default static resources with
+         * {@code nabtoInstallDefaultStaticResources}.
+         */
+        INSTALL_RESOURCES
+    }
+
+    private final Map<Phase, Long> phaseNanos = new EnumMap<Phase, Long>(Phase.class);
+    private NabtoStatus status;
+
+    NabtoStartupReport() {
+    }
+
+    synchronized void phaseDone(Phase phase, long nanos) {
+        if (nanos >= 0) {
+            phaseNanos.put(phase, nanos);
+        }
+    }
+
+    synchronized void finish(NabtoStatus status) {
+        this.status = status;
+    }
+
+    /**
+     * The time spent in the specified phase.
+     *
+     * @param phase  The phase.
+     * @return  The time in nanoseconds, or -1 if the phase has not run.
+     */
+    public synchronized long getPhaseNanos(Phase phase) {
+        Long nanos = phaseNanos.get(phase);
+        return nanos == null ? -1 : nanos;
+    }
+
+    /**
+     * The time spent in the specified phase.
+     *
+     * @param phase  The phase.
+     * @return  The time in milliseconds, or -1 if the phase has not run.
+     */
+    public synchronized long getPhaseMillis(Phase phase) {
+        Long nanos = phaseNanos.get(phase);
+        return nanos == null ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * The combined time of the phases that have run.
+     *
+     * @return  The time in milliseconds.
+     */
+    public synchronized long getTotalMillis() {
+        long total = 0;
+        for (Long nanos : phaseNanos.values()) {
+            total += nanos;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(total);
+    }
+
+    /**
+     * The result of the startup.
+     *
+     * @return  The status returned by {@link NabtoApi#startup()}, or {@code null} if it has not
+     *          finished.
+     */
+    public synchronized NabtoStatus getStatus() {
+        return status;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("status=").append(status).append(", total=").append(getTotalMillis()).append("ms");
+        for (Phase phase : Phase.values()) {
+            sb.append(", ").append(phase).append('=').append(getPhaseMillis(phase)).append("ms");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,21 @@
+package com.nabto.api;
+
+/**
+ * Wrapper side state of a {@link Stream}, see {@link NabtoHandleTable}.
+ */
+class NabtoStreamData {
+    private static final NabtoHandleTable<Stream, NabtoStreamData> table =
+            new NabtoHandleTable<Stream, NabtoStreamData>() {
+                @Override
+                NabtoStreamData create() {
+                    return new NabtoStreamData();
+                }
+            };
+
+    final NabtoHandleLifecycle lifecycle = new NabtoHandleLifecycle();
+    volatile String nabtoHost;
+
+    static NabtoStreamData of(Stream stream) {
+        return table.get(stream);
+    }
+}
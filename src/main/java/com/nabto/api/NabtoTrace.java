@@ -0,0 +1,37 @@
+package com.nabto.api;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Optional {@link Trace} sections around startup phases, available from API level 18.
+ * <p>
+ *     {@link #begin(String)} returns whether a section was started, and that value must be
+ *     passed to {@link #end(boolean)}, so sections stay balanced if tracing is switched while
+ *     a phase runs.
+ * </p>
+ */
+class NabtoTrace {
+    private static volatile boolean enabled;
+
+    private NabtoTrace() {
+    }
+
+    static void setEnabled(boolean enabled) {
+        NabtoTrace.enabled = enabled;
+    }
+
+    static boolean begin(String section) {
+        if (!enabled || Build.VERSION.SDK_INT < 18) {
+            return false;
+        }
+        Trace.beginSection(section);
+        return true;
+    }
+
+    static void end(boolean begun) {
+        if (begun) {
+            Trace.endSection();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.nabto.api;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A set of tunnels opened concurrently by
+ * {@link NabtoApi#tunnelOpenTcpBatch(List, Session)}.
+ * <p>
+ *     Each tunnel has a future completing with its tunnel info when its connection attempt is
+ *     complete. It never fails: a tunnel that could not be opened completes with the open status
+ *     in {@link TunnelInfoResult#getStatus()} and state {@link NabtoTunnelState#CLOSED}, a
+ *     tunnel that did not connect completes with the state it ended in. The aggregate futures
+ *     {@link #allReady()} and {@link #firstReady(int)} complete with the connected tunnels, so
+ *     the wait for a batch is the slowest connect time rather than the sum of them.
+ * </p>
+ *
+ * <p>Example:</p>
+ * <pre>{@code
+ * NabtoTunnelBatch batch = api.tunnelOpenTcpBatch(specs, session);
+ * List<Tunnel> ready = batch.firstReady(4).get(10, TimeUnit.SECONDS);
+ * for (int i = 0; i < batch.size(); i++) {
+ *     TunnelInfoResult info = batch.getInfo(i).get();
+ *     ...
+ * }
+ * }</pre>
+ */
+public class NabtoTunnelBatch implements Closeable {
+    private static class Aggregate {
+        final int wanted;
+        final NabtoSettableFuture<List<Tunnel>> future = new NabtoSettableFuture<List<Tunnel>>();
+
+        Aggregate(int wanted) {
+            this.wanted = wanted;
+        }
+    }
+
+    private final NabtoApi api;
+    private final List<NabtoTunnelSpec> specs;
+    private final Tunnel[] tunnels;
+    private final List<NabtoSettableFuture<TunnelInfoResult>> infos;
+    private final List<Tunnel> ready = new ArrayList<Tunnel>();
+    private final List<Aggregate> aggregates = new ArrayList<Aggregate>();
+    private int completed;
+    private boolean closed;
+
+    NabtoTunnelBatch(NabtoApi api, List<NabtoTunnelSpec> specs) {
+        this.api = api;
+        this.specs = Collections.unmodifiableList(new ArrayList<NabtoTunnelSpec>(specs));
+        this.tunnels = new Tunnel[specs.size()];
+        this.infos = new ArrayList<NabtoSettableFuture<TunnelInfoResult>>(specs.size());
+        for (int i = 0; i < specs.size(); i++) {
+            infos.add(new NabtoSettableFuture<TunnelInfoResult>());
+        }
+    }
+
+    /**
+     * Open all tunnels in parallel on the blocking executor.
+     */
+    void open(final Session session) {
+        for (int i = 0; i < specs.size(); i++) {
+            final int index = i;
+            NabtoExecutors.blocking().execute(new Runnable() {
+                @Override
+                public void run() {
+                    openTunnel(index, session);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The number of tunnels in the batch.
+     */
+    public int size() {
+        return specs.size();
+    }
+
+    /**
+     * @param index  The index of the tunnel, in the order of the specs given.
+     * @return The target of the tunnel.
+     */
+    public NabtoTunnelSpec getSpec(int index) {
+        return specs.get(index);
+    }
+
+    /**
+     * @param index  The index of the tunnel, in the order of the specs given.
+     * @return The tunnel, or {@code null} if it is not opened yet or could not be opened.
+     */
+    public synchronized Tunnel getTunnel(int index) {
+        return tunnels[index];
+    }
+
+    /**
+     * @param index  The index of the tunnel, in the order of the specs given.
+     * @return A future completing with the tunnel info after the connection attempt.
+     */
+    public Future<TunnelInfoResult> getInfo(int index) {
+        return infos.get(index);
+    }
+
+    /**
+     * Returns a future completing when all tunnels have completed their connection attempt.
+     *
+     * @return  A future completing with the connected tunnels, in the order they connected.
+     */
+    public Future<List<Tunnel>> allReady() {
+        return firstReady(specs.size());
+    }
+
+    /**
+     * Returns a future completing when the given number of tunnels are connected, or when all
+     * tunnels have completed their connection attempt without that many connecting.
+     *
+     * @param count  The number of connected tunnels to wait for.
+     * @return  A future completing with the first connected tunnels, at most count, in the
+     *          order they connected.
+     */
+    public synchronized Future<List<Tunnel>> firstReady(int count) {
+        if (count < 0 || count > specs.size()) {
+            throw new IllegalArgumentException("Invalid tunnel count: " + count);
+        }
+        Aggregate aggregate = new Aggregate(count);
+        aggregates.add(aggregate);
+        completeAggregates();
+        return aggregate.future;
+    }
+
+    /**
+     * Close all tunnels of the batch that are open, including those still connecting. Tunnels
+     * still being opened are closed as soon as they are open.
+     */
+    @Override
+    public void close() {
+        List<Tunnel> open = new ArrayList<Tunnel>();
+        synchronized (this) {
+            closed = true;
+            for (Tunnel tunnel : tunnels) {
+                if (tunnel != null && !NabtoTunnelData.of(tunnel).lifecycle.isClosed()) {
+                    open.add(tunnel);
+                }
+            }
+        }
+        for (Tunnel tunnel : open) {
+            api.tunnelClose(tunnel);
+        }
+    }
+
+    private void openTunnel(final int index, Session session) {
+        NabtoTunnelSpec spec = specs.get(index);
+        Tunnel tunnel = api.tunnelOpenTcp(0, spec.getNabtoHost(), spec.getRemoteHost(),
+                spec.getRemotePort(), session);
+        if (tunnel.getStatus() != NabtoStatus.OK) {
+            complete(index, null, new TunnelInfoResult(0, NabtoTunnelState.CLOSED.toInteger(), 0, 0,
+                    tunnel.getStatus().toInteger()));
+            return;
+        }
+        boolean closeNow;
+        synchronized (this) {
+            tunnels[index] = tunnel;
+            closeNow = closed;
+        }
+        if (closeNow) {
+            api.tunnelClose(tunnel);
+            complete(index, tunnel, new TunnelInfoResult(0, NabtoTunnelState.CLOSED.toInteger(), 0,
+                    0, NabtoStatus.OK.toInteger()));
+            return;
+        }
+        api.getTunnelMonitor().addListener(tunnel, new TunnelStateListener() {
+            @Override
+            public void onTunnelStateChanged(Tunnel tunnel, NabtoTunnelState previousState,
+                                             TunnelInfoResult info) {
+                if (info.getTunnelState() != NabtoTunnelState.CONNECTING) {
+                    api.getTunnelMonitor().removeListener(tunnel, this);
+                    complete(index, tunnel, info);
+                }
+            }
+        });
+    }
+
+    private void complete(int index, Tunnel tunnel, TunnelInfoResult info) {
+        if (!infos.get(index).set(info)) {
+            return;
+        }
+        synchronized (this) {
+            completed++;
+            if (tunnel != null && NabtoTunnelMonitor.isConnected(info.getTunnelState())) {
+                ready.add(tunnel);
+            }
+            completeAggregates();
+        }
+    }
+
+    private void completeAggregates() {
+        for (int i = aggregates.size() - 1; i >= 0; i--) {
+            Aggregate aggregate = aggregates.get(i);
+            if (ready.size() >= aggregate.wanted || completed == specs.size()) {
+                int count = Math.min(aggregate.wanted, ready.size());
+                aggregate.future.set(new ArrayList<Tunnel>(ready.subList(0, count)));
+                aggregates.remove(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.nabto.api;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wrapper side state of a {@link Tunnel}, see {@link NabtoHandleTable}.
+ */
+class NabtoTunnelData {
+    private static final NabtoHandleTable<Tunnel, NabtoTunnelData> table =
+            new NabtoHandleTable<Tunnel, NabtoTunnelData>() {
+                @Override
+                NabtoTunnelData create() {
+                    return new NabtoTunnelData();
+                }
+            };
+
+    final NabtoHandleLifecycle lifecycle = new NabtoHandleLifecycle();
+    volatile String nabtoHost;
+    // the local port given to or allocated for tunnelOpenTcp, 0 if the core chose it
+    volatile int localPort;
+    final AtomicLong bytesReceived = new AtomicLong();
+    final AtomicLong bytesSent = new AtomicLong();
+    final NabtoTunnelStats stats = new NabtoTunnelStats();
+    volatile long lastActivityNanos = System.nanoTime();
+    // users inside the wrapper keeping the tunnel from being closed by the NabtoTunnelManager
+    final AtomicInteger pins = new AtomicInteger();
+    volatile int recvWindowSize;
+    volatile int sendWindowSize;
+
+    static NabtoTunnelData of(Tunnel tunnel) {
+        return table.get(tunnel);
+    }
+}
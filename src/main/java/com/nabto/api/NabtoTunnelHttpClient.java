@@ -0,0 +1,644 @@
+package com.nabto.api;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A small HTTP/1.1 client for a web server reached through a tunnel.
+ * <p>
+ *     The client acquires its tunnel from a {@link NabtoTunnelPool} on first use and releases it
+ *     when the client is closed, so the tunnel lives as long as HTTP traffic needs it. TCP
+ *     connections to the local tunnel port are kept alive and reused between requests, and
+ *     {@link #getAll(List)} pipelines GET requests on one connection. A request that fails on a
+ *     reused connection, which the server may have closed while it was idle, is retried once on
+ *     a new connection if the method is idempotent.
+ * </p>
+ * <p>
+ *     Response bodies are read into a single array and handed out as a {@link ByteBuffer}
+ *     wrapping it. Traffic is reported to {@link NabtoApi#tunnelRecordTraffic(Tunnel, long, long)}.
+ * </p>
+ *
+ * <p>Example:</p>
+ * <pre>{@code
+ * NabtoTunnelHttpClient http = new NabtoTunnelHttpClient(pool, session,
+ *         new NabtoTunnelSpec("cam.nabto.net", "localhost", 80));
+ * NabtoHttpResponse response = http.get("/status.json");
+ * ByteBuffer body = response.getBody();
+ * ...
+ * http.close();
+ * }</pre>
+ */
+public class NabtoTunnelHttpClient implements Closeable {
+    /** Default maximum number of idle connections kept for reuse. */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 4;
+    /** Default time an idle connection is kept for reuse. */
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+    /** Default connect and read timeout, also used when waiting for the tunnel to connect. */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 15000;
+    /** Default maximum size of a response body. */
+    public static final int DEFAULT_MAX_BODY_SIZE = 16 * 1024 * 1024;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+    }
+
+    private static class Connection {
+        final Tunnel tunnel;
+        final Socket socket;
+        final CountingInputStream received;
+        final CountingOutputStream sent;
+        final InputStream in;
+        final OutputStream out;
+        boolean reused;
+        long idleSinceNanos;
+
+        Connection(Tunnel tunnel, int port, int timeoutMillis) throws IOException {
+            this.tunnel = tunnel;
+            this.socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress("127.0.0.1", port), timeoutMillis);
+                socket.setSoTimeout(timeoutMillis);
+                received = new CountingInputStream(socket.getInputStream());
+                sent = new CountingOutputStream(socket.getOutputStream());
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            in = new BufferedInputStream(received, BUFFER_SIZE);
+            out = new BufferedOutputStream(sent, BUFFER_SIZE);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static class Exchange {
+        final NabtoHttpResponse response;
+        final boolean keepAlive;
+
+        Exchange(NabtoHttpResponse response, boolean keepAlive) {
+            this.response = response;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    private final NabtoTunnelPool pool;
+    private final Session session;
+    private final NabtoTunnelSpec spec;
+    private final Deque<Connection> idle = new ArrayDeque<Connection>();
+    private final Object tunnelLock = new Object();
+    private Tunnel tunnel;
+    private int port;
+    private boolean closed;
+    private int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private long keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_KEEP_ALIVE_MILLIS);
+    private volatile int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+
+    /**
+     * Creates a client. No tunnel is acquired until the first request.
+     *
+     * @param pool     The pool to acquire the tunnel from.
+     * @param session  The session to open the tunnel in.
+     * @param spec     The tunnel target, which must be an HTTP server.
+     */
+    public NabtoTunnelHttpClient(NabtoTunnelPool pool, Session session, NabtoTunnelSpec spec) {
+        this.pool = pool;
+        this.session = session;
+        this.spec = spec;
+    }
+
+    /**
+     * Set how many idle connections are kept for reuse, and for how long.
+     *
+     * @param maxIdleConnections  The maximum number of idle connections, 0 to disable reuse.
+     * @param keepAliveMillis     How long an idle connection is kept.
+     */
+    public synchronized void setKeepAlive(int maxIdleConnections, long keepAliveMillis) {
+        if (maxIdleConnections < 0 || keepAliveMillis < 0) {
+            throw new IllegalArgumentException("Invalid keep alive: " + maxIdleConnections
+                    + ", " + keepAliveMillis);
+        }
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMillis);
+        trimIdle();
+    }
+
+    /**
+     * @param timeoutMillis  The connect and read timeout of connections, also used when waiting
+     *                       for the tunnel to connect.
+     */
+    public void setTimeout(int timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + timeoutMillis);
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param maxBodySize  The maximum size of a response body. A request whose response has a
+     *                     larger body fails with an {@link IOException}.
+     */
+    public void setMaxBodySize(int maxBodySize) {
+        if (maxBodySize < 0) {
+            throw new IllegalArgumentException("Invalid max body size: " + maxBodySize);
+        }
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Send a GET request.
+     *
+     * @param path  The request target, e.g. {@code "/index.html"}.
+     * @return  The response.
+     * @throws IOException  If the tunnel could not be opened or the request failed.
+     */
+    public NabtoHttpResponse get(String path) throws IOException {
+        return execute("GET", path, null, null);
+    }
+
+    /**
+     * Send a request.
+     *
+     * @param method   The request method, e.g. {@code "POST"}.
+     * @param path     The request target.
+     * @param headers  Additional request headers, or {@code null}.
+     * @param body     The request body, or {@code null}.
+     * @return  The response.
+     * @throws IOException  If the tunnel could not be opened or the request failed.
+     */
+    public NabtoHttpResponse execute(String method, String path, Map<String, String> headers,
+                                     byte[] body) throws IOException {
+        boolean idempotent = !"POST".equals(method) && !"PATCH".equals(method);
+        for (int attempt = 0; ; attempt++) {
+            Connection connection = borrow();
+            try {
+                writeRequest(connection, method, path, headers, body);
+                connection.out.flush();
+                Exchange exchange = readResponse(connection.in, method, maxBodySize);
+                recycle(connection, exchange.keepAlive);
+                return exchange.response;
+            } catch (IOException e) {
+                recordTraffic(connection);
+                connection.close();
+                if (!(connection.reused && idempotent && attempt == 0)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send GET requests pipelined on one connection: all requests are written before the
+     * responses are read. Requests the server does not answer on that connection, e.g. because
+     * it closes the connection, are sent again one by one.
+     *
+     * @param paths  The request targets.
+     * @return  The responses, in the order of the paths.
+     * @throws IOException  If the tunnel could not be opened or a request failed.
+     */
+    public List<NabtoHttpResponse> getAll(List<String> paths) throws IOException {
+        List<NabtoHttpResponse> responses = new ArrayList<NabtoHttpResponse>(paths.size());
+        Connection connection = borrow();
+        boolean keepAlive = true;
+        try {
+            for (String path : paths) {
+                writeRequest(connection, "GET", path, null, null);
+            }
+            connection.out.flush();
+            while (keepAlive && responses.size() < paths.size()) {
+                Exchange exchange = readResponse(connection.in, "GET", maxBodySize);
+                responses.add(exchange.response);
+                keepAlive = exchange.keepAlive;
+            }
+            recycle(connection, keepAlive);
+        } catch (IOException e) {
+            recordTraffic(connection);
+            connection.close();
+            if (responses.isEmpty() && !connection.reused) {
+                throw e;
+            }
+        }
+        for (int i = responses.size(); i < paths.size(); i++) {
+            responses.add(get(paths.get(i)));
+        }
+        return responses;
+    }
+
+    /**
+     * Close all connections and release the tunnel to the pool.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (Connection connection : idle) {
+                connection.close();
+            }
+            idle.clear();
+        }
+        synchronized (tunnelLock) {
+            if (tunnel != null) {
+                pool.release(tunnel);
+                tunnel = null;
+            }
+        }
+    }
+
+    private Connection borrow() throws IOException {
+        int currentPort;
+        Tunnel current;
+        synchronized (tunnelLock) {
+            currentPort = ensureTunnel();
+            current = tunnel;
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("HTTP client is closed");
+            }
+            trimIdle();
+            while (!idle.isEmpty()) {
+                Connection connection = idle.pop();
+                if (connection.tunnel == current) {
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return new Connection(current, currentPort, timeoutMillis);
+    }
+
+    private void recycle(Connection connection, boolean keepAlive) {
+        recordTraffic(connection);
+        synchronized (this) {
+            if (keepAlive && !closed && idle.size() < maxIdleConnections
+                    && !NabtoTunnelData.of(connection.tunnel).lifecycle.isClosed()) {
+                connection.idleSinceNanos = System.nanoTime();
+                idle.push(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    private void trimIdle() {
+        long now = System.nanoTime();
+        while (idle.size() > maxIdleConnections
+                || (!idle.isEmpty() && now - idle.peekLast().idleSinceNanos > keepAliveNanos)) {
+            idle.pollLast().close();
+        }
+    }
+
+    private void recordTraffic(Connection connection) {
+        long received = connection.received.count;
+        long sent = connection.sent.count;
+        connection.received.count = 0;
+        connection.sent.count = 0;
+        pool.getApi().tunnelRecordTraffic(connection.tunnel, received, sent);
+    }
+
+    /**
+     * Acquire a connected tunnel if there is none, or the current one was closed.
+     *
+     * @return The local port of the tunnel.
+     */
+    private int ensureTunnel() throws IOException {
+        if (tunnel != null && !NabtoTunnelData.of(tunnel).lifecycle.isClosed()) {
+            return port;
+        }
+        if (tunnel != null) {
+            pool.release(tunnel);
+            tunnel = null;
+        }
+        Tunnel acquired = pool.acquire(session, spec);
+        if (acquired.getStatus() != NabtoStatus.OK) {
+            throw new IOException("Failed to open tunnel to " + spec + ": " + acquired.getStatus());
+        }
+        TunnelInfoResult info;
+        try {
+            info = pool.getApi().getTunnelMonitor().awaitConnection(acquired)
+                    .get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            info = null;
+        } catch (ExecutionException e) {
+            info = null;
+        } catch (TimeoutException e) {
+            info = null;
+        }
+        if (info == null || !NabtoTunnelMonitor.isConnected(info.getTunnelState())) {
+            pool.release(acquired);
+            throw new IOException("Failed to connect tunnel to " + spec + ": "
+                    + (info == null ? "timeout" : info.getTunnelState()));
+        }
+        tunnel = acquired;
+        port = pool.getApi().tunnelLocalPort(acquired);
+        if (port == 0) {
+            port = info.getPort();
+        }
+        return port;
+    }
+
+    private void writeRequest(Connection connection, String method, String path,
+                              Map<String, String> headers, byte[] body) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        if (headers == null || !containsHeader(headers, "Host")) {
+            sb.append("Host: ").append(spec.getRemoteHost());
+            if (spec.getRemotePort() != 80) {
+                sb.append(':').append(spec.getRemotePort());
+            }
+            sb.append("\r\n");
+        }
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        if (body != null) {
+            sb.append("Content-Length: ").append(body.length).append("\r\n");
+        } else if ("POST".equals(method) || "PUT".equals(method) || "PATCH".equals(method)) {
+            sb.append("Content-Length: 0\r\n");
+        }
+        sb.append("\r\n");
+        connection.out.write(sb.toString().getBytes(ISO_8859_1));
+        if (body != null) {
+            connection.out.write(body);
+        }
+    }
+
+    private static boolean containsHeader(Map<String, String> headers, String name) {
+        for (String key : headers.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read a response. Bodies larger than maxBodySize, and negative or overflowing lengths, are
+     * rejected before anything is allocated for them.
+     */
+    static Exchange readResponse(InputStream in, String method, int maxBodySize)
+            throws IOException {
+        String statusLine;
+        int statusCode;
+        Map<String, List<String>> headers;
+        do {
+            statusLine = readLine(in);
+            if (statusLine == null) {
+                throw new EOFException("Connection closed by server");
+            }
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            try {
+                statusCode = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            headers = readHeaders(in);
+        } while (statusCode >= 100 && statusCode < 200);
+
+        String[] parts = statusLine.split(" ", 3);
+        String reason = parts.length > 2 ? parts[2] : "";
+        String connectionHeader = first(headers, "connection");
+        boolean keepAlive = parts[0].equals("HTTP/1.0")
+                ? "keep-alive".equalsIgnoreCase(connectionHeader)
+                : !"close".equalsIgnoreCase(connectionHeader);
+
+        byte[] body;
+        int length;
+        String transferEncoding = first(headers, "transfer-encoding");
+        String contentLength = first(headers, "content-length");
+        if ("HEAD".equals(method) || statusCode == 204 || statusCode == 304) {
+            body = new byte[0];
+            length = 0;
+        } else if (transferEncoding != null
+                && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+            body = new byte[BUFFER_SIZE];
+            length = 0;
+            while (true) {
+                String sizeLine = readLine(in);
+                if (sizeLine == null) {
+                    throw new EOFException("Connection closed in chunked body");
+                }
+                int semicolon = sizeLine.indexOf(';');
+                long chunkSize;
+                try {
+                    chunkSize = Long.parseLong((semicolon < 0 ? sizeLine
+                            : sizeLine.substring(0, semicolon)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + sizeLine);
+                }
+                if (chunkSize < 0) {
+                    throw new IOException("Invalid chunk size: " + sizeLine);
+                }
+                if (chunkSize == 0) {
+                    readHeaders(in);
+                    break;
+                }
+                if (chunkSize > maxBodySize - length) {
+                    throw new IOException("Response body exceeds " + maxBodySize + " bytes");
+                }
+                int size = (int) chunkSize;
+                if (length + size > body.length) {
+                    body = grow(body, length, length + size, maxBodySize);
+                }
+                readFully(in, body, length, size);
+                length += size;
+                readLine(in);
+            }
+        } else if (contentLength != null) {
+            long declared;
+            try {
+                declared = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+            if (declared < 0) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+            if (declared > maxBodySize) {
+                throw new IOException("Response body exceeds " + maxBodySize + " bytes");
+            }
+            length = (int) declared;
+            body = new byte[length];
+            readFully(in, body, 0, length);
+        } else {
+            keepAlive = false;
+            body = new byte[Math.min(BUFFER_SIZE, maxBodySize)];
+            length = 0;
+            while (true) {
+                if (length == body.length) {
+                    if (length == maxBodySize) {
+                        if (in.read() >= 0) {
+                            throw new IOException("Response body exceeds " + maxBodySize
+                                    + " bytes");
+                        }
+                        break;
+                    }
+                    body = grow(body, length, length + 1, maxBodySize);
+                }
+                int n = in.read(body, length, body.length - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(body, 0, length).asReadOnlyBuffer();
+        return new Exchange(new NabtoHttpResponse(statusCode, reason, headers, buffer), keepAlive);
+    }
+
+    /**
+     * @return A copy of the first length bytes of the body, with room for at least needed bytes
+     *         and at most max bytes.
+     */
+    private static byte[] grow(byte[] body, int length, int needed, int max) {
+        byte[] grown = new byte[(int) Math.min(max, Math.max(2L * body.length, needed))];
+        System.arraycopy(body, 0, grown, 0, length);
+        return grown;
+    }
+
+    private static Map<String, List<String>> readHeaders(InputStream in) throws IOException {
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new IOException("Invalid header line: " + line);
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+            List<String> values = headers.get(name);
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                headers.put(name, values);
+            }
+            values.add(line.substring(colon + 1).trim());
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed in headers");
+        }
+        return headers;
+    }
+
+    private static String first(Map<String, List<String>> headers, String name) {
+        List<String> values = headers.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * @return The line without line terminator, or {@code null} at end of stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        byte[] line = new byte[128];
+        int length = 0;
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (length == line.length) {
+                if (length >= MAX_LINE_LENGTH) {
+                    throw new IOException("Line too long");
+                }
+                byte[] grown = new byte[length * 2];
+                System.arraycopy(line, 0, grown, 0, length);
+                line = grown;
+            }
+            line[length++] = (byte) b;
+        }
+        if (b < 0 && length == 0) {
+            return null;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, ISO_8859_1);
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int n = in.read(buffer, offset, length);
+            if (n < 0) {
+                throw new EOFException("Connection closed in body");
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+}
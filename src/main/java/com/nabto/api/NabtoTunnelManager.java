@@ -0,0 +1,231 @@
+package com.nabto.api;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the open tunnels of a {@link NabtoApi} and closes tunnels that are idle or use too much
+ * window memory.
+ * <p>
+ *     Every tunnel opened with the API is tracked until it is closed, without keeping it from
+ *     being garbage collected. A tunnel is active when it is opened, or when traffic is reported
+ *     with {@link NabtoApi#tunnelRecordTraffic(Tunnel, long, long)}; applications that pass
+ *     tunnel traffic outside the wrapper should report it, if only with zero byte counts, to
+ *     keep the tunnel active.
+ * </p>
+ * <p>
+ *     Both policies are disabled by default. With an idle limit, tunnels inactive for longer
+ *     are closed. With a window budget, the combined receive and send window sizes of open
+ *     tunnels are kept within the budget by closing the least recently active tunnels. Window
+ *     sizes are counted in the unit of {@link NabtoApi#tunnelSetRecvWindowSize(int, Tunnel)};
+ *     a tunnel whose window sizes were never set counts with an assumed size.
+ * </p>
+ * <p>
+ *     Tunnels the wrapper itself holds are never closed by either policy: a tunnel acquired
+ *     from a {@link NabtoTunnelPool} and not yet released, and the tunnels of an open
+ *     {@link NabtoManagedTunnel}. They still count towards the window budget. A pooled tunnel
+ *     is idle from the time it is released.
+ * </p>
+ */
+public class NabtoTunnelManager {
+    private static final long CHECK_PERIOD_MILLIS = 5000;
+
+    private final NabtoApi api;
+    private final Map<Tunnel, Boolean> tunnels = new WeakHashMap<Tunnel, Boolean>();
+    private long idleLimitNanos;
+    private long windowBudget;
+    private int assumedWindowSize;
+    private ScheduledFuture<?> checkTask;
+
+    NabtoTunnelManager(NabtoApi api) {
+        this.api = api;
+    }
+
+    /**
+     * Close tunnels that have been inactive for longer than the limit.
+     *
+     * @param idleLimitMillis  The idle limit, or 0 to keep idle tunnels open (the default).
+     */
+    public synchronized void setIdleLimit(long idleLimitMillis) {
+        if (idleLimitMillis < 0) {
+            throw new IllegalArgumentException("Invalid idle limit: " + idleLimitMillis);
+        }
+        this.idleLimitNanos = TimeUnit.MILLISECONDS.toNanos(idleLimitMillis);
+        updateCheckTask();
+    }
+
+    /**
+     * Limit the combined window sizes of open tunnels.
+     *
+     * @param windowBudget       The maximum sum of receive and send window sizes of all open
+     *                           tunnels, or 0 for no limit (the default).
+     * @param assumedWindowSize  The receive and send window size assumed for tunnels whose window
+     *                           sizes were not set.
+     */
+    public void setWindowBudget(long windowBudget, int assumedWindowSize) {
+        if (windowBudget < 0 || assumedWindowSize < 0) {
+            throw new IllegalArgumentException("Invalid window budget: " + windowBudget + ", "
+                    + assumedWindowSize);
+        }
+        synchronized (this) {
+            this.windowBudget = windowBudget;
+            this.assumedWindowSize = assumedWindowSize;
+            updateCheckTask();
+        }
+        enforce(null);
+    }
+
+    /**
+     * @return The open tunnels, most recently active first.
+     */
+    public synchronized List<Tunnel> getOpenTunnels() {
+        List<Tunnel> open = new ArrayList<Tunnel>(tunnels.keySet());
+        Collections.sort(open, new Comparator<Tunnel>() {
+            @Override
+            public int compare(Tunnel a, Tunnel b) {
+                long activityA = NabtoTunnelData.of(a).lastActivityNanos;
+                long activityB = NabtoTunnelData.of(b).lastActivityNanos;
+                long diff = activityB - activityA;
+                return diff > 0 ? 1 : diff < 0 ? -1 : 0;
+            }
+        });
+        return open;
+    }
+
+    /**
+     * @return The combined receive and send window sizes of open tunnels, see
+     *         {@link #setWindowBudget(long, int)}.
+     */
+    public synchronized long getWindowUsage() {
+        long usage = 0;
+        for (Tunnel tunnel : tunnels.keySet()) {
+            usage += windowSize(tunnel);
+        }
+        return usage;
+    }
+
+    void opened(Tunnel tunnel) {
+        synchronized (this) {
+            tunnels.put(tunnel, Boolean.TRUE);
+        }
+        enforce(tunnel);
+    }
+
+    synchronized void closed(Tunnel tunnel) {
+        tunnels.remove(tunnel);
+    }
+
+    /**
+     * Keep a tunnel open while the wrapper uses it, until a matching {@link #unpin(Tunnel)}.
+     */
+    void pin(Tunnel tunnel) {
+        NabtoTunnelData data = NabtoTunnelData.of(tunnel);
+        data.pins.incrementAndGet();
+        data.lastActivityNanos = System.nanoTime();
+    }
+
+    /**
+     * Release a pin; the tunnel is idle from now on if nothing else pins it.
+     */
+    void unpin(Tunnel tunnel) {
+        NabtoTunnelData data = NabtoTunnelData.of(tunnel);
+        data.lastActivityNanos = System.nanoTime();
+        data.pins.decrementAndGet();
+    }
+
+    void windowChanged(Tunnel tunnel) {
+        enforce(tunnel);
+    }
+
+    synchronized void clear() {
+        tunnels.clear();
+    }
+
+    private long windowSize(Tunnel tunnel) {
+        NabtoTunnelData data = NabtoTunnelData.of(tunnel);
+        int recv = data.recvWindowSize;
+        int send = data.sendWindowSize;
+        return (recv > 0 ? recv : assumedWindowSize) + (send > 0 ? send : assumedWindowSize);
+    }
+
+    private void updateCheckTask() {
+        boolean enabled = idleLimitNanos > 0 || windowBudget > 0;
+        if (enabled && checkTask == null) {
+            checkTask = NabtoExecutors.scheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    enforce(null);
+                }
+            }, CHECK_PERIOD_MILLIS, CHECK_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        } else if (!enabled && checkTask != null) {
+            checkTask.cancel(false);
+            checkTask = null;
+        }
+    }
+
+    /**
+     * Close idle tunnels, then the least recently active tunnels while over the window budget.
+     * Pinned tunnels are not closed.
+     *
+     * @param keep  A tunnel that must not be closed for the budget, or {@code null}.
+     */
+    void enforce(Tunnel keep) {
+        List<Tunnel> idle = new ArrayList<Tunnel>();
+        List<Tunnel> evicted = new ArrayList<Tunnel>();
+        synchronized (this) {
+            if (idleLimitNanos == 0 && windowBudget == 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            List<Tunnel> open = getOpenTunnels();
+            long usage = 0;
+            // the tunnels that may be closed for the budget, most recently active first
+            List<Tunnel> closable = new ArrayList<Tunnel>();
+            for (Tunnel tunnel : open) {
+                NabtoTunnelData data = NabtoTunnelData.of(tunnel);
+                if (data.pins.get() > 0 || tunnel == keep) {
+                    usage += windowSize(tunnel);
+                } else if (idleLimitNanos > 0 && now - data.lastActivityNanos > idleLimitNanos) {
+                    idle.add(tunnel);
+                } else {
+                    usage += windowSize(tunnel);
+                    closable.add(tunnel);
+                }
+            }
+            if (windowBudget > 0) {
+                for (int i = closable.size() - 1; i >= 0 && usage > windowBudget; i--) {
+                    Tunnel tunnel = closable.get(i);
+                    usage -= windowSize(tunnel);
+                    evicted.add(tunnel);
+                }
+            }
+            tunnels.keySet().removeAll(idle);
+            tunnels.keySet().removeAll(evicted);
+        }
+        for (Tunnel tunnel : idle) {
+            Log.d(this.getClass().getSimpleName(), "Closing idle tunnel on port "
+                    + NabtoTunnelData.of(tunnel).localPort);
+            close(tunnel);
+        }
+        for (Tunnel tunnel : evicted) {
+            Log.d(this.getClass().getSimpleName(), "Closing tunnel on port "
+                    + NabtoTunnelData.of(tunnel).localPort + " to stay within window budget "
+                    + windowBudget);
+            close(tunnel);
+        }
+    }
+
+    private void close(Tunnel tunnel) {
+        if (!NabtoTunnelData.of(tunnel).lifecycle.isClosed()) {
+            api.tunnelClose(tunnel);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.nabto.api;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the counters of a tunnel, see {@link NabtoApi#tunnelMetrics(Tunnel)}.
+ * <p>
+ *     States and errors are recorded when the {@link NabtoTunnelMonitor} polls the tunnel, so
+ *     they are only complete for tunnels that have been watched since they were opened, e.g. by a
+ *     {@link NabtoTunnelMetricsSampler}. Byte counts are the traffic reported with
+ *     {@link NabtoApi#tunnelRecordTraffic(Tunnel, long, long)}.
+ * </p>
+ */
+public class NabtoTunnelMetrics {
+    private final Tunnel tunnel;
+    private final NabtoTunnelState state;
+    private final long bytesReceived;
+    private final long bytesSent;
+    private final long connectNanos;
+    private final long ageNanos;
+    private final Map<NabtoTunnelState, Long> stateNanos;
+    private final int[] errors;
+
+    NabtoTunnelMetrics(Tunnel tunnel, NabtoTunnelState state, long bytesReceived, long bytesSent,
+                       long connectNanos, long ageNanos, Map<NabtoTunnelState, Long> stateNanos,
+                       int[] errors) {
+        this.tunnel = tunnel;
+        this.state = state;
+        this.bytesReceived = bytesReceived;
+        this.bytesSent = bytesSent;
+        this.connectNanos = connectNanos;
+        this.ageNanos = ageNanos;
+        this.stateNanos = stateNanos;
+        this.errors = errors;
+    }
+
+    /**
+     * @return The tunnel.
+     */
+    public Tunnel getTunnel() {
+        return tunnel;
+    }
+
+    /**
+     * @return The last recorded state, or {@code null} if the tunnel has not been polled.
+     */
+    public NabtoTunnelState getState() {
+        return state;
+    }
+
+    /**
+     * @return The bytes read from the local port of the tunnel.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return The bytes written to the local port of the tunnel.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return The time from opening the tunnel until it was first seen connected, in
+     *         milliseconds, or -1 if it has not been seen connected.
+     */
+    public long getConnectMillis() {
+        return connectNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(connectNanos);
+    }
+
+    /**
+     * @return The time since the tunnel was opened, in milliseconds.
+     */
+    public long getAgeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ageNanos);
+    }
+
+    /**
+     * The time the tunnel has spent in a state.
+     *
+     * @param state  The state.
+     * @return The time in milliseconds.
+     */
+    public long getStateMillis(NabtoTunnelState state) {
+        Long nanos = stateNanos.get(state);
+        return nanos == null ? 0 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * The most recent distinct values of {@link TunnelInfoResult#getLastError()}, at most 8.
+     *
+     * @return The errors, oldest first.
+     */
+    public int[] getErrorHistory() {
+        return errors.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("state=").append(state).append(", received=").append(bytesReceived)
+                .append(", sent=").append(bytesSent).append(", connect=").append(getConnectMillis())
+                .append("ms");
+        for (Map.Entry<NabtoTunnelState, Long> entry : stateNanos.entrySet()) {
+            sb.append(", ").append(entry.getKey()).append('=')
+                    .append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append("ms");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package com.nabto.api;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports metrics of a set of tunnels periodically, e.g. to telemetry.
+ * <p>
+ *     Added tunnels are watched by the {@link NabtoTunnelMonitor}, which records their states as
+ *     it polls them. Every sample period, a snapshot of each tunnel is taken and handed to the
+ *     listener on the shared scheduler thread. Taking a snapshot does not call into the core.
+ * </p>
+ *
+ * <p>Example:</p>
+ * <pre>{@code
+ * NabtoTunnelMetricsSampler sampler = new NabtoTunnelMetricsSampler(api, 60000,
+ *         new TunnelMetricsListener() {
+ *             public void onTunnelMetrics(List<NabtoTunnelMetrics> metrics) {
+ *                 telemetry.record(metrics);
+ *             }
+ *         });
+ * sampler.add(tunnel);
+ * }</pre>
+ */
+public class NabtoTunnelMetricsSampler implements Closeable {
+    private final NabtoApi api;
+    private final TunnelMetricsListener listener;
+    private final Map<Tunnel, TunnelStateListener> tunnels =
+            new IdentityHashMap<Tunnel, TunnelStateListener>();
+    private final ScheduledFuture<?> sampleTask;
+
+    /**
+     * Creates a sampler and starts sampling.
+     *
+     * @param api           The API the tunnels were opened with.
+     * @param periodMillis  The sample period.
+     * @param listener      The listener receiving the metrics.
+     */
+    public NabtoTunnelMetricsSampler(NabtoApi api, long periodMillis,
+            TunnelMetricsListener listener) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Invalid sample period: " + periodMillis);
+        }
+        this.api = api;
+        this.listener = listener;
+        this.sampleTask = NabtoExecutors.scheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start sampling a tunnel. It is sampled until it is closed or removed.
+     *
+     * @param tunnel  An open tunnel.
+     */
+    public void add(Tunnel tunnel) {
+        TunnelStateListener watcher = new TunnelStateListener() {
+            @Override
+            public void onTunnelStateChanged(Tunnel tunnel, NabtoTunnelState previousState,
+                                             TunnelInfoResult info) {
+            }
+        };
+        synchronized (this) {
+            if (tunnels.containsKey(tunnel)) {
+                return;
+            }
+            tunnels.put(tunnel, watcher);
+        }
+        api.getTunnelMonitor().addListener(tunnel, watcher);
+    }
+
+    /**
+     * Stop sampling a tunnel.
+     *
+     * @param tunnel  The tunnel.
+     */
+    public void remove(Tunnel tunnel) {
+        TunnelStateListener watcher;
+        synchronized (this) {
+            watcher = tunnels.remove(tunnel);
+        }
+        if (watcher != null) {
+            api.getTunnelMonitor().removeListener(tunnel, watcher);
+        }
+    }
+
+    /**
+     * Stop sampling all tunnels.
+     */
+    @Override
+    public void close() {
+        sampleTask.cancel(false);
+        List<Tunnel> removed;
+        synchronized (this) {
+            removed = new ArrayList<Tunnel>(tunnels.keySet());
+        }
+        for (Tunnel tunnel : removed) {
+            remove(tunnel);
+        }
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        List<NabtoTunnelMetrics> metrics = new ArrayList<NabtoTunnelMetrics>();
+        synchronized (this) {
+            for (Iterator<Tunnel> it = tunnels.keySet().iterator(); it.hasNext(); ) {
+                Tunnel tunnel = it.next();
+                NabtoTunnelData data = NabtoTunnelData.of(tunnel);
+                NabtoTunnelMetrics snapshot = data.stats.snapshot(tunnel,
+                        data.bytesReceived.get(), data.bytesSent.get(), now);
+                metrics.add(snapshot);
+                if (snapshot.getState() == NabtoTunnelState.CLOSED) {
+                    it.remove();
+                }
+            }
+        }
+        if (!metrics.isEmpty()) {
+            listener.onTunnelMetrics(metrics);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.nabto.api;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the state of tunnels and notifies {@link TunnelStateListener}s of state transitions.
+ * <p>
+ *     The core does not report tunnel state changes by itself, so the monitor polls
+ *     {@link NabtoApi#tunnelInfo(Tunnel)}. All watched tunnels are polled by a single task on a
+ *     shared scheduler: tunnels that are connecting are polled often, connected tunnels less
+ *     often. The task runs when the next tunnel is due, not at a fixed rate. A tunnel is watched
+ *     while it has listeners or pending futures, and is dropped after it has been closed.
+ * </p>
+ *
+ * <p>Example:</p>
+ * <pre>{@code
+ * Tunnel tunnel = api.tunnelOpenTcp(0, "demo.nabto.net", "localhost", 80, session);
+ * Future<TunnelInfoResult> connected = api.getTunnelMonitor().awaitConnection(tunnel);
+ * TunnelInfoResult info = connected.get(10, TimeUnit.SECONDS);
+ * }</pre>
+ */
+public class NabtoTunnelMonitor {
+    /** Default poll period of tunnels that are connecting. */
+    public static final long DEFAULT_CONNECTING_POLL_MILLIS = 50;
+    /** Default poll period of tunnels that are connected. */
+    public static final long DEFAULT_CONNECTED_POLL_MILLIS = 1000;
+
+    private static final EnumSet<NabtoTunnelState> CONNECTION_COMPLETE =
+            EnumSet.complementOf(EnumSet.of(NabtoTunnelState.CONNECTING));
+
+    private static class StateFuture {
+        final EnumSet<NabtoTunnelState> states;
+        final NabtoSettableFuture<TunnelInfoResult> future =
+                new NabtoSettableFuture<TunnelInfoResult>();
+
+        StateFuture(EnumSet<NabtoTunnelState> states) {
+            this.states = states;
+        }
+    }
+
+    private static class Watch {
+        final Tunnel tunnel;
+        final List<TunnelStateListener> listeners = new CopyOnWriteArrayList<TunnelStateListener>();
+        final List<StateFuture> futures = new ArrayList<StateFuture>();
+        TunnelInfoResult lastInfo;
+        long nextPollNanos;
+
+        Watch(Tunnel tunnel) {
+            this.tunnel = tunnel;
+            this.nextPollNanos = System.nanoTime();
+        }
+    }
+
+    private final Map<Tunnel, Watch> watches = new IdentityHashMap<Tunnel, Watch>();
+    private final ExecutorService events =
+            Executors.newSingleThreadExecutor(NabtoExecutors.threadFactory("nabto-tunnel-events"));
+    private long connectingPollNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_CONNECTING_POLL_MILLIS);
+    private long connectedPollNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CONNECTED_POLL_MILLIS);
+    private ScheduledFuture<?> pollTask;
+    private long pollAtNanos;
+    private final NabtoApi api;
+    private final NabtoConnectionPathCache pathCache;
+
+    NabtoTunnelMonitor(NabtoApi api, NabtoConnectionPathCache pathCache) {
+        this.api = api;
+        this.pathCache = pathCache;
+    }
+
+    /**
+     * Set how often tunnels are polled. The new periods apply from the next poll of each tunnel.
+     *
+     * @param connectingMillis  Poll period of tunnels in state {@link NabtoTunnelState#CONNECTING}.
+     * @param connectedMillis   Poll period of tunnels in all other states.
+     */
+    public synchronized void setPollPeriods(long connectingMillis, long connectedMillis) {
+        if (connectingMillis <= 0 || connectedMillis < connectingMillis) {
+            throw new IllegalArgumentException("Invalid poll periods: " + connectingMillis
+                    + ", " + connectedMillis);
+        }
+        connectingPollNanos = TimeUnit.MILLISECONDS.toNanos(connectingMillis);
+        connectedPollNanos = TimeUnit.MILLISECONDS.toNanos(connectedMillis);
+    }
+
+    /**
+     * Start delivering state transitions of the tunnel to the listener. The current state is
+     * delivered as soon as it is known.
+     *
+     * @param tunnel    The tunnel to watch.
+     * @param listener  The listener to notify.
+     */
+    public void addListener(final Tunnel tunnel, final TunnelStateListener listener) {
+        final TunnelInfoResult current;
+        synchronized (this) {
+            Watch watch = watch(tunnel);
+            watch.listeners.add(listener);
+            current = watch.lastInfo;
+        }
+        if (current != null) {
+            events.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onTunnelStateChanged(tunnel, null, current);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop delivering state transitions of the tunnel to the listener.
+     *
+     * @param tunnel    The watched tunnel.
+     * @param listener  The listener to remove.
+     */
+    public synchronized void removeListener(Tunnel tunnel, TunnelStateListener listener) {
+        Watch watch = watches.get(tunnel);
+        if (watch != null) {
+            watch.listeners.remove(listener);
+            dropIfUnused(watch);
+        }
+    }
+
+    /**
+     * Returns a future completing when the tunnel enters one of the specified states, or is
+     * closed.
+     *
+     * @param tunnel  The tunnel to watch.
+     * @param states  The states to wait for.
+     * @return  A future completing with the tunnel info of the first matching state.
+     */
+    public Future<TunnelInfoResult> awaitState(Tunnel tunnel, NabtoTunnelState... states) {
+        EnumSet<NabtoTunnelState> wanted = EnumSet.of(NabtoTunnelState.CLOSED, states);
+        StateFuture stateFuture = new StateFuture(wanted);
+        synchronized (this) {
+            Watch watch = watch(tunnel);
+            if (watch.lastInfo != null && wanted.contains(watch.lastInfo.getTunnelState())) {
+                stateFuture.future.set(watch.lastInfo);
+                dropIfUnused(watch);
+            } else {
+                watch.futures.add(stateFuture);
+            }
+        }
+        return stateFuture.future;
+    }
+
+    /**
+     * Returns a future completing when the tunnel has completed its connection attempt, that is
+     * when it leaves {@link NabtoTunnelState#CONNECTING}. This is the non-blocking counterpart
+     * of {@link NabtoApi#tunnelWait(Tunnel, int, int)}.
+     *
+     * @param tunnel  The tunnel to watch.
+     * @return  A future completing with the tunnel info after the connection attempt.
+     */
+    public Future<TunnelInfoResult> awaitConnection(Tunnel tunnel) {
+        NabtoTunnelState[] states = CONNECTION_COMPLETE.toArray(new NabtoTunnelState[0]);
+        return awaitState(tunnel, states);
+    }
+
+    /**
+     * Returns the most recently polled info of a watched tunnel.
+     *
+     * @param tunnel  The tunnel.
+     * @return  The tunnel info, or {@code null} if the tunnel is not watched or not polled yet.
+     */
+    public synchronized TunnelInfoResult getLastInfo(Tunnel tunnel) {
+        Watch watch = watches.get(tunnel);
+        return watch == null ? null : watch.lastInfo;
+    }
+
+    /**
+     * Returns whether the state is a connected tunnel state.
+     *
+     * @param state  The state.
+     * @return  {@code true} for {@link NabtoTunnelState#LOCAL},
+     *          {@link NabtoTunnelState#REMOTE_P2P}, {@link NabtoTunnelState#REMOTE_RELAY} and
+     *          {@link NabtoTunnelState#REMOTE_RELAY_MICRO}.
+     */
+    public static boolean isConnected(NabtoTunnelState state) {
+        return state == NabtoTunnelState.LOCAL || state == NabtoTunnelState.REMOTE_P2P
+                || state == NabtoTunnelState.REMOTE_RELAY
+                || state == NabtoTunnelState.REMOTE_RELAY_MICRO;
+    }
+
+    private Watch watch(Tunnel tunnel) {
+        Watch watch = watches.get(tunnel);
+        if (watch == null) {
+            watch = new Watch(tunnel);
+            watches.put(tunnel, watch);
+            schedulePoll(watch.nextPollNanos);
+        }
+        return watch;
+    }
+
+    private void dropIfUnused(Watch watch) {
+        if (watch.listeners.isEmpty() && watch.futures.isEmpty()) {
+            watches.remove(watch.tunnel);
+            stopPollingIfIdle();
+        }
+    }
+
+    /**
+     * Run the poll task at the specified time, unless it already runs earlier.
+     */
+    private void schedulePoll(long atNanos) {
+        if (pollTask != null) {
+            if (pollAtNanos - atNanos <= 0) {
+                return;
+            }
+            pollTask.cancel(false);
+        }
+        pollAtNanos = atNanos;
+        pollTask = NabtoExecutors.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, Math.max(0, atNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private void stopPollingIfIdle() {
+        if (watches.isEmpty() && pollTask != null) {
+            pollTask.cancel(false);
+            pollTask = null;
+        }
+    }
+
+    private void poll() {
+        long now = System.nanoTime();
+        List<Watch> due = new ArrayList<Watch>();
+        synchronized (this) {
+            pollTask = null;
+            for (Watch watch : watches.values()) {
+                if (now - watch.nextPollNanos >= 0) {
+                    due.add(watch);
+                }
+            }
+        }
+        for (Watch watch : due) {
+            TunnelInfoResult info = null;
+            // a concurrent close waits for the call, so the core never gets a freed handle
+            NabtoHandleLifecycle lifecycle = NabtoTunnelData.of(watch.tunnel).lifecycle;
+            if (lifecycle.acquire()) {
+                try {
+                    info = api.coreTunnelInfo(watch.tunnel);
+                } finally {
+                    lifecycle.release();
+                }
+            }
+            if (info == null || info.getStatus() != NabtoStatus.OK) {
+                info = closedInfo();
+            }
+            update(watch, info, now);
+        }
+        synchronized (this) {
+            if (!watches.isEmpty()) {
+                long next = 0;
+                boolean first = true;
+                for (Watch watch : watches.values()) {
+                    if (first || watch.nextPollNanos - next < 0) {
+                        next = watch.nextPollNanos;
+                        first = false;
+                    }
+                }
+                schedulePoll(next);
+            }
+        }
+    }
+
+    private void update(final Watch watch, final TunnelInfoResult info, long now) {
+        final NabtoTunnelState previous;
+        final NabtoTunnelState state = info.getTunnelState();
+        List<StateFuture> completed = new ArrayList<StateFuture>();
+        NabtoTunnelData data = NabtoTunnelData.of(watch.tunnel);
+        data.stats.record(info, now);
+        synchronized (this) {
+            previous = watch.lastInfo == null ? null : watch.lastInfo.getTunnelState();
+            watch.lastInfo = info;
+            watch.nextPollNanos = now + (state == NabtoTunnelState.CONNECTING
+                    ? connectingPollNanos
+                    : connectedPollNanos);
+            for (Iterator<StateFuture> it = watch.futures.iterator(); it.hasNext(); ) {
+                StateFuture stateFuture = it.next();
+                if (stateFuture.future.isDone()) {
+                    it.remove();
+                } else if (stateFuture.states.contains(state)) {
+                    completed.add(stateFuture);
+                    it.remove();
+                }
+            }
+        }
+        for (StateFuture stateFuture : completed) {
+            stateFuture.future.set(info);
+        }
+        if (previous != state) {
+            if (isConnected(state)) {
+                pathCache.record(data.nabtoHost, state);
+            }
+            events.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (TunnelStateListener listener : watch.listeners) {
+                        listener.onTunnelStateChanged(watch.tunnel, previous, info);
+                    }
+                }
+            });
+        }
+        if (state == NabtoTunnelState.CLOSED) {
+            synchronized (this) {
+                if (watches.get(watch.tunnel) == watch) {
+                    watches.remove(watch.tunnel);
+                }
+                stopPollingIfIdle();
+            }
+        } else {
+            synchronized (this) {
+                dropIfUnused(watch);
+            }
+        }
+    }
+
+    private static TunnelInfoResult closedInfo() {
+        return new TunnelInfoResult(0, NabtoTunnelState.CLOSED.toInteger(), 0, 0,
+                NabtoStatus.OK.toInteger());
+    }
+}
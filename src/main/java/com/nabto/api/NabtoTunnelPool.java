@@ -0,0 +1,320 @@
+package com.nabto.api;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps TCP tunnels open for reuse after their users are done with them.
+ * <p>
+ *     Opening a tunnel pays for connecting to the device and NAT traversal. The pool hands back
+ *     the tunnel already open for the same session and {@link NabtoTunnelSpec target} instead.
+ *     Pooled tunnels are reference counted: {@link #release(Tunnel)} only releases a tunnel, it
+ *     is closed when it has been unused for the idle timeout, or when room is needed for another
+ *     tunnel and it is the least recently used unused tunnel. Tunnels that are closed or lose
+ *     their device are dropped from the pool, so the next acquire opens a new tunnel. A tunnel in
+ *     use is not closed by the idle limit or window budget of the {@link NabtoTunnelManager}.
+ * </p>
+ *
+ * <p>Example:</p>
+ * <pre>{@code
+ * NabtoTunnelPool pool = new NabtoTunnelPool(api, 60000, 8);
+ * Tunnel tunnel = pool.acquire(session, new NabtoTunnelSpec("cam.nabto.net", "localhost", 554));
+ * ...
+ * pool.release(tunnel);
+ * }</pre>
+ */
+public class NabtoTunnelPool implements Closeable {
+    private static class Key {
+        final Session session;
+        final NabtoTunnelSpec spec;
+
+        Key(Session session, NabtoTunnelSpec spec) {
+            this.session = session;
+            this.spec = spec;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return session == other.session && spec.equals(other.spec);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(session) + spec.hashCode();
+        }
+    }
+
+    private class Entry implements TunnelStateListener {
+        final Key key;
+        final Tunnel tunnel;
+        int references;
+        boolean evicted;
+        ScheduledFuture<?> expiry;
+
+        Entry(Key key, Tunnel tunnel) {
+            this.key = key;
+            this.tunnel = tunnel;
+        }
+
+        @Override
+        public void onTunnelStateChanged(Tunnel tunnel, NabtoTunnelState previousState,
+                                         TunnelInfoResult info) {
+            NabtoTunnelState state = info.getTunnelState();
+            if (state == NabtoTunnelState.CLOSED || state == NabtoTunnelState.READY_FOR_RECONNECT) {
+                evictDead(this);
+            }
+        }
+    }
+
+    private final NabtoApi api;
+    private final long idleTimeoutMillis;
+    private final int maxTunnels;
+    private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final Map<Tunnel, Entry> entriesByTunnel = new IdentityHashMap<Tunnel, Entry>();
+    private boolean closed;
+
+    /**
+     * Creates a tunnel pool.
+     *
+     * @param api                The API used to open and close tunnels.
+     * @param idleTimeoutMillis  How long an unused tunnel is kept open.
+     * @param maxTunnels         The maximum number of tunnels kept open. When the cap is reached,
+     *                           the least recently used unused tunnel is closed. Tunnels in use
+     *                           are never closed by the pool, so the cap may be exceeded while
+     *                           all tunnels are in use.
+     */
+    public NabtoTunnelPool(NabtoApi api, long idleTimeoutMillis, int maxTunnels) {
+        if (idleTimeoutMillis < 0 || maxTunnels <= 0) {
+            throw new IllegalArgumentException("Invalid pool limits: " + idleTimeoutMillis
+                    + ", " + maxTunnels);
+        }
+        this.api = api;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxTunnels = maxTunnels;
+    }
+
+    NabtoApi getApi() {
+        return api;
+    }
+
+    /**
+     * Get a tunnel to the target, reusing an open tunnel of the session if there is one.
+     * <p>
+     *     A new tunnel is opened on a local port chosen by the core. A reused tunnel may still be
+     *     connecting, use {@link NabtoTunnelMonitor#awaitConnection(Tunnel)} to wait for it.
+     *     Every successful acquire must be followed by a call to {@link #release(Tunnel)}.
+     * </p>
+     *
+     * @param session  The session to open the tunnel in.
+     * @param spec     The tunnel target.
+     * @return  A {@link Tunnel} object, see {@link NabtoApi#tunnelOpenTcp(int, String, String,
+     *          int, Session)}. Failed tunnels are not pooled and must not be released.
+     */
+    public Tunnel acquire(Session session, NabtoTunnelSpec spec) {
+        Key key = new Key(session, spec);
+        Entry entry;
+        List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Tunnel pool is closed");
+            }
+            entry = entries.get(key);
+            if (entry != null) {
+                retain(entry);
+                return entry.tunnel;
+            }
+        }
+
+        Tunnel tunnel = api.tunnelOpenTcp(0, spec.getNabtoHost(), spec.getRemoteHost(),
+                spec.getRemotePort(), session);
+        if (tunnel.getStatus() != NabtoStatus.OK) {
+            return tunnel;
+        }
+
+        boolean duplicate = false;
+        synchronized (this) {
+            entry = closed ? null : entries.get(key);
+            if (entry != null || closed) {
+                duplicate = true;
+            } else {
+                for (Iterator<Entry> it = entries.values().iterator();
+                     entries.size() >= maxTunnels && it.hasNext(); ) {
+                    Entry candidate = it.next();
+                    if (candidate.references == 0) {
+                        it.remove();
+                        evict(candidate);
+                        evicted.add(candidate);
+                    }
+                }
+                entry = new Entry(key, tunnel);
+                entries.put(key, entry);
+                entriesByTunnel.put(tunnel, entry);
+            }
+            if (entry != null) {
+                retain(entry);
+            }
+        }
+        for (Entry candidate : evicted) {
+            closeTunnel(candidate);
+        }
+        if (duplicate) {
+            api.tunnelClose(tunnel);
+            if (entry == null) {
+                throw new IllegalStateException("Tunnel pool is closed");
+            }
+            return entry.tunnel;
+        }
+        api.getTunnelMonitor().addListener(tunnel, entry);
+        return tunnel;
+    }
+
+    /**
+     * Release a tunnel obtained from {@link #acquire(Session, NabtoTunnelSpec)}. The tunnel is
+     * closed when it has not been acquired again within the idle timeout.
+     *
+     * @param tunnel  The tunnel.
+     */
+    public void release(Tunnel tunnel) {
+        final Entry entry;
+        boolean closeNow;
+        synchronized (this) {
+            entry = entriesByTunnel.get(tunnel);
+            if (entry == null || entry.references == 0) {
+                throw new IllegalArgumentException("Tunnel is not acquired from this pool");
+            }
+            entry.references--;
+            if (entry.references > 0) {
+                return;
+            }
+            api.getTunnelManager().unpin(entry.tunnel);
+            closeNow = entry.evicted || idleTimeoutMillis == 0;
+            if (closeNow) {
+                if (entries.get(entry.key) == entry) {
+                    entries.remove(entry.key);
+                }
+                evict(entry);
+            } else {
+                entry.expiry = NabtoExecutors.scheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire(entry);
+                    }
+                }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (closeNow) {
+            closeTunnel(entry);
+        }
+    }
+
+    /**
+     * @return The number of tunnels currently kept by the pool, in use or not.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Close all unused tunnels. Tunnels in use are closed when they are released.
+     */
+    public void evictIdle() {
+        List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (this) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (entry.references == 0) {
+                    it.remove();
+                    evict(entry);
+                    evicted.add(entry);
+                }
+            }
+        }
+        for (Entry entry : evicted) {
+            closeTunnel(entry);
+        }
+    }
+
+    /**
+     * Close the pool. Unused tunnels are closed now, tunnels in use when they are released.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (Entry entry : entries.values()) {
+                entry.evicted = true;
+            }
+        }
+        evictIdle();
+        synchronized (this) {
+            entries.clear();
+        }
+    }
+
+    private void retain(Entry entry) {
+        if (entry.references++ == 0) {
+            api.getTunnelManager().pin(entry.tunnel);
+        }
+        if (entry.expiry != null) {
+            entry.expiry.cancel(false);
+            entry.expiry = null;
+        }
+    }
+
+    private void expire(Entry entry) {
+        synchronized (this) {
+            if (entry.references > 0 || entry.evicted) {
+                return;
+            }
+            entries.remove(entry.key);
+            evict(entry);
+        }
+        closeTunnel(entry);
+    }
+
+    private void evictDead(Entry entry) {
+        boolean closeNow;
+        synchronized (this) {
+            if (entries.get(entry.key) == entry) {
+                entries.remove(entry.key);
+            }
+            closeNow = entry.references == 0 && !entry.evicted;
+            evict(entry);
+        }
+        if (closeNow) {
+            closeTunnel(entry);
+        }
+    }
+
+    private void evict(Entry entry) {
+        entry.evicted = true;
+        if (entry.expiry != null) {
+            entry.expiry.cancel(false);
+            entry.expiry = null;
+        }
+        if (entry.references == 0) {
+            entriesByTunnel.remove(entry.tunnel);
+        }
+    }
+
+    private void closeTunnel(Entry entry) {
+        api.getTunnelMonitor().removeListener(entry.tunnel, entry);
+        if (!NabtoTunnelData.of(entry.tunnel).lifecycle.isClosed()) {
+            Log.d(this.getClass().getSimpleName(), "Closing pooled tunnel " + entry.key.spec);
+            api.tunnelClose(entry.tunnel);
+        }
+    }
+}
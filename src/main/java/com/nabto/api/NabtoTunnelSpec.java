@@ -0,0 +1,74 @@
+package com.nabto.api;
+
+/**
+ * The target of a TCP tunnel: the Nabto device and the host and port the device connects to.
+ * See {@link NabtoApi#tunnelOpenTcp(int, String, String, int, Session)}.
+ */
+public class NabtoTunnelSpec {
+    private final String nabtoHost;
+    private final String remoteHost;
+    private final int remotePort;
+
+    /**
+     * Creates a tunnel target.
+     *
+     * @param nabtoHost   The remote Nabto host to connect to.
+     * @param remoteHost  The host the remote endpoint establishes a TCP connection to.
+     * @param remotePort  The TCP port to connect to on remoteHost.
+     */
+    public NabtoTunnelSpec(String nabtoHost, String remoteHost, int remotePort) {
+        if (nabtoHost == null || remoteHost == null) {
+            throw new IllegalArgumentException("Hosts must not be null");
+        }
+        this.nabtoHost = nabtoHost;
+        this.remoteHost = remoteHost;
+        this.remotePort = remotePort;
+    }
+
+    /**
+     * @return The remote Nabto host to connect to.
+     */
+    public String getNabtoHost() {
+        return nabtoHost;
+    }
+
+    /**
+     * @return The host the remote endpoint establishes a TCP connection to.
+     */
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    /**
+     * @return The TCP port to connect to on the remote host.
+     */
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NabtoTunnelSpec)) {
+            return false;
+        }
+        NabtoTunnelSpec other = (NabtoTunnelSpec) o;
+        return remotePort == other.remotePort && nabtoHost.equals(other.nabtoHost)
+                && remoteHost.equals(other.remoteHost);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = nabtoHost.hashCode();
+        result = 31 * result + remoteHost.hashCode();
+        result = 31 * result + remotePort;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return nabtoHost + " -> " + remoteHost + ":" + remotePort;
+    }
+}
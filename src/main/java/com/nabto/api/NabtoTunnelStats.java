@@ -0,0 +1,58 @@
+package com.nabto.api;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Per tunnel state history recorded when the {@link NabtoTunnelMonitor} polls the tunnel.
+ * Recording is a few field updates, so it runs on every poll.
+ */
+class NabtoTunnelStats {
+    static final int ERROR_HISTORY = 8;
+
+    private final long openedNanos = System.nanoTime();
+    private final Map<NabtoTunnelState, Long> stateNanos =
+            new EnumMap<NabtoTunnelState, Long>(NabtoTunnelState.class);
+    private final int[] errors = new int[ERROR_HISTORY];
+    private int errorCount;
+    private NabtoTunnelState state;
+    private long stateSinceNanos;
+    private long connectNanos = -1;
+
+    synchronized void record(TunnelInfoResult info, long now) {
+        NabtoTunnelState current = info.getTunnelState();
+        if (current != state) {
+            accumulate(now);
+            state = current;
+            stateSinceNanos = now;
+            if (connectNanos < 0 && NabtoTunnelMonitor.isConnected(current)) {
+                connectNanos = now - openedNanos;
+            }
+        }
+        int error = info.getLastError();
+        if (error != 0 && (errorCount == 0 || errors[(errorCount - 1) % ERROR_HISTORY] != error)) {
+            errors[errorCount % ERROR_HISTORY] = error;
+            errorCount++;
+        }
+    }
+
+    synchronized NabtoTunnelMetrics snapshot(Tunnel tunnel, long bytesReceived, long bytesSent,
+            long now) {
+        accumulate(now);
+        stateSinceNanos = now;
+        int count = Math.min(errorCount, ERROR_HISTORY);
+        int[] history = new int[count];
+        for (int i = 0; i < count; i++) {
+            history[i] = errors[(errorCount - count + i) % ERROR_HISTORY];
+        }
+        return new NabtoTunnelMetrics(tunnel, state, bytesReceived, bytesSent, connectNanos,
+                now - openedNanos, new EnumMap<NabtoTunnelState, Long>(stateNanos), history);
+    }
+
+    private void accumulate(long now) {
+        if (state != null) {
+            Long total = stateNanos.get(state);
+            stateNanos.put(state, (total == null ? 0 : total) + now - stateSinceNanos);
+        }
+    }
+}
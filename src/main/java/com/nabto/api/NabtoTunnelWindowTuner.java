@@ -0,0 +1,318 @@
+package com.nabto.api;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the receive and send window sizes of tunnels to their connection type and throughput.
+ * <p>
+ *     Each connection type has a window profile: an initial size and bounds, in the unit of
+ *     {@link NabtoApi#tunnelSetRecvWindowSize(int, Tunnel)}. When a tuned tunnel changes
+ *     connection type, the initial size of the new type is applied. While traffic is reported with
+ *     {@link NabtoApi#tunnelRecordTraffic(Tunnel, long, long)}, the throughput of each direction
+ *     is sampled periodically: the window is doubled as long as throughput keeps improving, and
+ *     stepped back once when it plateaus, since the larger window then only adds buffering. A
+ *     later large drop in throughput starts probing again. All decisions are logged.
+ * </p>
+ * <p>
+ *     Window sizes apply to streams opened when TCP clients connect to the tunnel, so a new size
+ *     takes effect on the next local connection.
+ * </p>
+ */
+public class NabtoTunnelWindowTuner {
+    /** Default sample period of tuned tunnels. */
+    public static final long DEFAULT_SAMPLE_PERIOD_MILLIS = 2000;
+
+    private static final double IMPROVEMENT = 1.05;
+    private static final double DROP = 0.5;
+
+    private static class Profile {
+        final int min;
+        final int initial;
+        final int max;
+
+        Profile(int min, int initial, int max) {
+            this.min = min;
+            this.initial = initial;
+            this.max = max;
+        }
+    }
+
+    private static class Direction {
+        final boolean receive;
+        int window;
+        int previousWindow;
+        long lastBytes;
+        double bestThroughput;
+        boolean grown;
+        boolean settled;
+
+        Direction(boolean receive) {
+            this.receive = receive;
+        }
+
+        void reset(int window, long bytes) {
+            this.window = window;
+            this.previousWindow = window;
+            this.lastBytes = bytes;
+            this.bestThroughput = 0;
+            this.grown = false;
+            this.settled = false;
+        }
+    }
+
+    private static class Tuning {
+        final Direction receive = new Direction(true);
+        final Direction send = new Direction(false);
+        NabtoTunnelState state;
+        long lastSampleNanos;
+    }
+
+    private final NabtoApi api;
+    private final Map<NabtoTunnelState, Profile> profiles =
+            new EnumMap<NabtoTunnelState, Profile>(NabtoTunnelState.class);
+    private final Map<Tunnel, Tuning> tunings = new IdentityHashMap<Tunnel, Tuning>();
+    private final TunnelStateListener stateListener = new TunnelStateListener() {
+        @Override
+        public void onTunnelStateChanged(Tunnel tunnel, NabtoTunnelState previousState,
+                                         TunnelInfoResult info) {
+            stateChanged(tunnel, info.getTunnelState());
+        }
+    };
+    private long samplePeriodMillis = DEFAULT_SAMPLE_PERIOD_MILLIS;
+    private ScheduledFuture<?> sampleTask;
+
+    NabtoTunnelWindowTuner(NabtoApi api) {
+        this.api = api;
+        profiles.put(NabtoTunnelState.LOCAL, new Profile(32, 128, 512));
+        profiles.put(NabtoTunnelState.REMOTE_P2P, new Profile(16, 64, 256));
+        profiles.put(NabtoTunnelState.REMOTE_RELAY, new Profile(8, 16, 64));
+        profiles.put(NabtoTunnelState.REMOTE_RELAY_MICRO, new Profile(4, 8, 16));
+    }
+
+    /**
+     * Set the window profile of a connection type. Tunnels currently on that connection type
+     * are reset to the new initial size.
+     *
+     * @param state    A connected tunnel state, see {@link NabtoTunnelMonitor#isConnected}.
+     * @param min      The smallest window size to use.
+     * @param initial  The window size applied when a tunnel enters the state.
+     * @param max      The largest window size to use.
+     */
+    public void setProfile(NabtoTunnelState state, int min, int initial, int max) {
+        if (!NabtoTunnelMonitor.isConnected(state) || min <= 0 || initial < min || max < initial) {
+            throw new IllegalArgumentException("Invalid window profile for " + state + ": "
+                    + min + ", " + initial + ", " + max);
+        }
+        List<Tunnel> affected = new ArrayList<Tunnel>();
+        synchronized (this) {
+            profiles.put(state, new Profile(min, initial, max));
+            for (Map.Entry<Tunnel, Tuning> entry : tunings.entrySet()) {
+                if (entry.getValue().state == state) {
+                    entry.getValue().state = null;
+                    affected.add(entry.getKey());
+                }
+            }
+        }
+        for (Tunnel tunnel : affected) {
+            stateChanged(tunnel, state);
+        }
+    }
+
+    /**
+     * Set how often the throughput of tuned tunnels is sampled.
+     *
+     * @param samplePeriodMillis  The sample period.
+     */
+    public synchronized void setSamplePeriod(long samplePeriodMillis) {
+        if (samplePeriodMillis <= 0) {
+            throw new IllegalArgumentException("Invalid sample period: " + samplePeriodMillis);
+        }
+        this.samplePeriodMillis = samplePeriodMillis;
+        if (sampleTask != null) {
+            sampleTask.cancel(false);
+            sampleTask = null;
+            startSampling();
+        }
+    }
+
+    /**
+     * Start tuning the window sizes of a tunnel. Tuning stops when the tunnel is closed.
+     *
+     * @param tunnel  An open tunnel.
+     */
+    public void enable(Tunnel tunnel) {
+        synchronized (this) {
+            if (tunings.containsKey(tunnel)) {
+                return;
+            }
+            tunings.put(tunnel, new Tuning());
+            startSampling();
+        }
+        api.getTunnelMonitor().addListener(tunnel, stateListener);
+    }
+
+    /**
+     * Stop tuning the window sizes of a tunnel. The current window sizes are kept.
+     *
+     * @param tunnel  The tunnel.
+     */
+    public void disable(Tunnel tunnel) {
+        synchronized (this) {
+            if (tunings.remove(tunnel) == null) {
+                return;
+            }
+            stopSamplingIfIdle();
+        }
+        api.getTunnelMonitor().removeListener(tunnel, stateListener);
+    }
+
+    private void startSampling() {
+        if (sampleTask == null) {
+            sampleTask = NabtoExecutors.scheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sample();
+                }
+            }, samplePeriodMillis, samplePeriodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void stopSamplingIfIdle() {
+        if (tunings.isEmpty() && sampleTask != null) {
+            sampleTask.cancel(false);
+            sampleTask = null;
+        }
+    }
+
+    private void stateChanged(Tunnel tunnel, NabtoTunnelState state) {
+        Profile profile;
+        synchronized (this) {
+            Tuning tuning = tunings.get(tunnel);
+            if (tuning == null || tuning.state == state) {
+                return;
+            }
+            if (state == NabtoTunnelState.CLOSED) {
+                tunings.remove(tunnel);
+                stopSamplingIfIdle();
+                return;
+            }
+            tuning.state = state;
+            profile = profiles.get(state);
+            if (profile == null) {
+                return;
+            }
+            tuning.lastSampleNanos = System.nanoTime();
+            NabtoTunnelData data = NabtoTunnelData.of(tunnel);
+            tuning.receive.reset(profile.initial, data.bytesReceived.get());
+            tuning.send.reset(profile.initial, data.bytesSent.get());
+        }
+        Log.d(this.getClass().getSimpleName(), "Tunnel is " + state
+                + ", using initial window size " + profile.initial);
+        setWindowSizes(tunnel, profile.initial, profile.initial);
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        Map<Tunnel, int[]> changes = new IdentityHashMap<Tunnel, int[]>();
+        synchronized (this) {
+            for (Map.Entry<Tunnel, Tuning> entry : tunings.entrySet()) {
+                Tunnel tunnel = entry.getKey();
+                Tuning tuning = entry.getValue();
+                Profile profile = tuning.state == null ? null : profiles.get(tuning.state);
+                if (profile == null) {
+                    continue;
+                }
+                double seconds = (now - tuning.lastSampleNanos) / 1e9;
+                tuning.lastSampleNanos = now;
+                NabtoTunnelData data = NabtoTunnelData.of(tunnel);
+                int receive = adjust(tuning.receive, data.bytesReceived.get(), seconds, profile);
+                int send = adjust(tuning.send, data.bytesSent.get(), seconds, profile);
+                if (receive != 0 || send != 0) {
+                    changes.put(tunnel, new int[] {receive, send});
+                }
+            }
+        }
+        for (Map.Entry<Tunnel, int[]> change : changes.entrySet()) {
+            int[] windows = change.getValue();
+            setWindowSizes(change.getKey(), windows[0], windows[1]);
+        }
+    }
+
+    /**
+     * Set the window sizes that are not 0, unless the tunnel has been closed. A concurrent
+     * close waits for the calls.
+     */
+    private void setWindowSizes(Tunnel tunnel, int receive, int send) {
+        NabtoHandleLifecycle lifecycle = NabtoTunnelData.of(tunnel).lifecycle;
+        if (!lifecycle.acquire()) {
+            return;
+        }
+        try {
+            if (receive != 0) {
+                api.tunnelSetRecvWindowSize(receive, tunnel);
+            }
+            if (send != 0) {
+                api.tunnelSetSendWindowSize(send, tunnel);
+            }
+        } finally {
+            lifecycle.release();
+        }
+    }
+
+    /**
+     * @return The new window size, or 0 if it is unchanged.
+     */
+    private int adjust(Direction direction, long bytes, double seconds, Profile profile) {
+        double throughput = seconds > 0 ? (bytes - direction.lastBytes) / seconds : 0;
+        direction.lastBytes = bytes;
+        if (throughput <= 0) {
+            return 0;
+        }
+        String name = direction.receive ? "receive" : "send";
+        if (direction.settled) {
+            if (throughput < direction.bestThroughput * DROP) {
+                Log.d(this.getClass().getSimpleName(), "Throughput of " + name + " window "
+                        + direction.window + " dropped to " + (long) throughput
+                        + " B/s, probing again");
+                direction.bestThroughput = throughput;
+                direction.grown = false;
+                direction.settled = false;
+            }
+            return 0;
+        }
+        if (throughput >= direction.bestThroughput * IMPROVEMENT) {
+            direction.bestThroughput = throughput;
+            if (direction.window >= profile.max) {
+                direction.settled = true;
+                return 0;
+            }
+            direction.previousWindow = direction.window;
+            direction.window = Math.min(profile.max, direction.window * 2);
+            direction.grown = true;
+            Log.d(this.getClass().getSimpleName(), "Throughput improved to " + (long) throughput
+                    + " B/s, growing " + name + " window to " + direction.window);
+            return direction.window;
+        }
+        direction.settled = true;
+        if (direction.grown && direction.previousWindow >= profile.min) {
+            direction.window = direction.previousWindow;
+            direction.grown = false;
+            Log.d(this.getClass().getSimpleName(), "Throughput plateaued at "
+                    + (long) direction.bestThroughput + " B/s, stepping " + name
+                    + " window back to " + direction.window);
+            return direction.window;
+        }
+        Log.d(this.getClass().getSimpleName(), "Throughput plateaued at "
+                + (long) direction.bestThroughput + " B/s, holding " + name + " window at "
+                + direction.window);
+        return 0;
+    }
+}
@@ -0,0 +1,16 @@
+package com.nabto.api;
+
+import java.util.List;
+
+/**
+ * Receives periodic tunnel metrics from a {@link NabtoTunnelMetricsSampler}.
+ */
+public interface TunnelMetricsListener {
+    /**
+     * Called every sample period on a background thread.
+     *
+     * @param metrics  A snapshot of each sampled tunnel. A closed tunnel is included one last
+     *                 time after it has been closed.
+     */
+    void onTunnelMetrics(List<NabtoTunnelMetrics> metrics);
+}
@@ -0,0 +1,24 @@
+package com.nabto.api;
+
+/**
+ * Receives tunnel state transitions from a {@link NabtoTunnelMonitor}.
+ * <p>
+ *     Callbacks for all tunnels of a monitor are delivered in order on a single background
+ *     thread, so implementations should return quickly.
+ * </p>
+ */
+public interface TunnelStateListener {
+    /**
+     * Called when the state of a watched tunnel changes.
+     * <p>
+     *     The first callback after a listener is added reports the current state with
+     *     {@code previousState} set to {@code null}. When the tunnel is closed, the last callback
+     *     reports {@link NabtoTunnelState#CLOSED}.
+     * </p>
+     *
+     * @param tunnel         The tunnel.
+     * @param previousState  The previous state, or {@code null} if unknown.
+     * @param info           The tunnel info with the new state.
+     */
+    void onTunnelStateChanged(Tunnel tunnel, NabtoTunnelState previousState, TunnelInfoResult info);
+}